@@ -0,0 +1,31 @@
+package de.tisoft.jsquashfs.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are reported next to the
+ * throughput. Accepts the usual JMH command line options, e.g.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar Decompress -p compressor=ZSTD
+ * </pre>
+ *
+ * <p>The image benchmarks read the images created by {@code generate_test_data.sh}. They are
+ * expected in {@code test_data} of the working directory, the location can be changed with {@code
+ * -Djsquashfs.testData=<dir>}.
+ */
+public class Benchmarks {
+  public static void main(String[] args) throws Exception {
+    Options options =
+        new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .jvmArgsAppend("-D" + TestData.PROPERTY + "=" + TestData.directory().toAbsolutePath())
+            .build();
+    new Runner(options).run();
+  }
+}
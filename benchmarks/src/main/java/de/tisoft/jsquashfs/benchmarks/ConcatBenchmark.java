@@ -0,0 +1,73 @@
+package de.tisoft.jsquashfs.benchmarks;
+
+import de.tisoft.jsquashfs.parser.Concat;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import io.kaitai.struct.ByteBufferKaitaiStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concatenation of the metablocks of a table. The metablocks are stored uncompressed, so only the
+ * concatenation itself is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConcatBenchmark {
+  private static final int SUPERBLOCK_SIZE = 96;
+  private static final int METABLOCK_SIZE = 8192;
+
+  @Param({"16", "1024"})
+  private int metablocks;
+
+  private Squashfs.MetablockList metablockList;
+
+  @Setup
+  public void setUp() {
+    ByteBuffer image =
+        ByteBuffer.allocate(SUPERBLOCK_SIZE + metablocks * (2 + METABLOCK_SIZE))
+            .order(ByteOrder.LITTLE_ENDIAN);
+    image.put(new byte[] {'h', 's', 'q', 's'});
+    image.putInt(0).putInt(0).putInt(131072).putInt(0);
+    // zlib, block log, flags, id count, version 4.0
+    image.putShort((short) 1).putShort((short) 17).putShort((short) 0).putShort((short) 0);
+    image.putShort((short) 4).putShort((short) 0);
+    image.position(SUPERBLOCK_SIZE);
+    for (int i = 0; i < metablocks; i++) {
+      // uncompressed metablocks, filled with their index
+      image.putShort((short) (0x8000 | METABLOCK_SIZE));
+      for (int j = 0; j < METABLOCK_SIZE; j++) {
+        image.put((byte) i);
+      }
+    }
+    Squashfs root = new Squashfs(new ByteBufferKaitaiStream(image.array()));
+    metablockList =
+        new Squashfs.MetablockList(
+            new ByteBufferKaitaiStream(
+                ByteBuffer.wrap(image.array(), SUPERBLOCK_SIZE, image.capacity() - SUPERBLOCK_SIZE)
+                    .slice()),
+            null,
+            root,
+            SUPERBLOCK_SIZE);
+  }
+
+  @Benchmark
+  public byte[] decode() {
+    return new Concat(metablockList).decode(new byte[0]);
+  }
+}
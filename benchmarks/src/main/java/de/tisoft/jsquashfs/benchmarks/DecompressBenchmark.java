@@ -0,0 +1,126 @@
+package de.tisoft.jsquashfs.benchmarks;
+
+import com.github.luben.zstd.Zstd;
+import de.tisoft.jsquashfs.parser.Decompress;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import net.jpountz.lz4.LZ4Factory;
+import org.anarres.lzo.LzoAlgorithm;
+import org.anarres.lzo.LzoCompressor;
+import org.anarres.lzo.LzoLibrary;
+import org.anarres.lzo.lzo_uintp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAOutputStream;
+import org.tukaani.xz.XZOutputStream;
+
+/** Decompression of a single data block, as done for every block of an extracted file. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DecompressBenchmark {
+  @Param({"ZLIB", "LZMA", "LZO", "XZ", "LZ4", "ZSTD"})
+  private Squashfs.Compressor compressor;
+
+  @Param({"4096", "1048576"})
+  private int blockSize;
+
+  private byte[] compressed;
+  private byte[] dest;
+  private Decompress decompress;
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] data = data(blockSize);
+    compressed = compress(compressor, data);
+    dest = new byte[blockSize];
+    decompress = new Decompress(true, compressor, blockSize, false);
+    if (!Arrays.equals(decompress.decode(compressed), data)) {
+      throw new IllegalStateException("Round trip failed for " + compressor);
+    }
+  }
+
+  /** Decodes into a reused buffer, like the extractor does. */
+  @Benchmark
+  public int decodeInto() {
+    return decompress.decode(compressed, 0, compressed.length, dest, 0);
+  }
+
+  /** Decodes into a new array, like the parser does. */
+  @Benchmark
+  public byte[] decode() {
+    return decompress.decode(compressed);
+  }
+
+  /** Returns text like data, which compresses to roughly a third. */
+  private static byte[] data(int size) {
+    String[] words = {
+      "squashfs", "inode", "block", "fragment", "directory", "metablock", "the", "a", "of", "\n"
+    };
+    Random random = new Random(42);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size + 16);
+    while (out.size() < size) {
+      byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII);
+      out.write(word, 0, word.length);
+      out.write(random.nextBoolean() ? ' ' : 'a' + random.nextInt(26));
+    }
+    return Arrays.copyOf(out.toByteArray(), size);
+  }
+
+  private static byte[] compress(Squashfs.Compressor compressor, byte[] data) throws IOException {
+    switch (compressor) {
+      case ZLIB:
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length * 2 + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+      case LZMA:
+        ByteArrayOutputStream lzma = new ByteArrayOutputStream();
+        try (OutputStream out = new LZMAOutputStream(lzma, new LZMA2Options(), data.length)) {
+          out.write(data);
+        }
+        return lzma.toByteArray();
+      case LZO:
+        LzoCompressor lzo = LzoLibrary.getInstance().newCompressor(LzoAlgorithm.LZO1X, null);
+        byte[] out = new byte[data.length + lzo.getCompressionOverhead(data.length)];
+        lzo_uintp outLength = new lzo_uintp(out.length);
+        lzo.compress(data, 0, data.length, out, 0, outLength);
+        return Arrays.copyOf(out, outLength.value);
+      case XZ:
+        ByteArrayOutputStream xz = new ByteArrayOutputStream();
+        try (OutputStream xzOut = new XZOutputStream(xz, new LZMA2Options())) {
+          xzOut.write(data);
+        }
+        return xz.toByteArray();
+      case LZ4:
+        return LZ4Factory.fastestInstance().highCompressor().compress(data);
+      case ZSTD:
+        return Zstd.compress(data);
+      default:
+        throw new IllegalArgumentException("Unsupported compression: " + compressor);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package de.tisoft.jsquashfs.benchmarks;
+
+import de.tisoft.jsquashfs.parser.MappedKaitaiStream;
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the inode table of an image. Every invocation parses a new {@link Squashfs}, so the
+ * metablock cache starts out empty and the metablocks are decompressed again.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InodeTableBenchmark {
+  @Param({"gzip", "xz", "lz4", "zstd"})
+  private String image;
+
+  private MappedKaitaiStream stream;
+
+  @Setup
+  public void setUp() throws IOException {
+    stream = new MappedKaitaiStream(TestData.image(image));
+  }
+
+  /** Parses the whole inode table at once. */
+  @Benchmark
+  public Squashfs.InodeHeaders inodeTable() {
+    return squashfs().inodeTable().inodes();
+  }
+
+  /** Resolves every inode from its directory entry, like the extraction does. */
+  @Benchmark
+  public long walk() {
+    Squashfs squashfs = squashfs();
+    return walk(Metadata.inode(squashfs, squashfs.superblock().rootInodeRef().raw()));
+  }
+
+  /** Decompresses the metadata tables in parallel first, then resolves every inode. */
+  @Benchmark
+  public long preloadedWalk() {
+    Squashfs squashfs = squashfs();
+    Metadata.preload(squashfs, ForkJoinPool.commonPool());
+    return walk(Metadata.inode(squashfs, squashfs.superblock().rootInodeRef().raw()));
+  }
+
+  private static long walk(Squashfs.InodeHeader inodeHeader) {
+    long count = 1;
+    if (inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
+      for (Squashfs.DirectoryHeader directoryHeader :
+          Metadata.directory(inodeHeader).directoryHeader()) {
+        for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+          count +=
+              walk(
+                  Metadata.inode(
+                      inodeHeader._root(), directoryHeader.start(), directoryEntry.offset()));
+        }
+      }
+    }
+    return count;
+  }
+
+  private Squashfs squashfs() {
+    stream.seek(0);
+    return new Squashfs(stream);
+  }
+}
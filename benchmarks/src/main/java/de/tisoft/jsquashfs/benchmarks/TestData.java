@@ -0,0 +1,31 @@
+package de.tisoft.jsquashfs.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Locates the images created by {@code generate_test_data.sh}. */
+final class TestData {
+  static final String PROPERTY = "jsquashfs.testData";
+
+  private TestData() {}
+
+  static Path directory() {
+    return Paths.get(System.getProperty(PROPERTY, "test_data"));
+  }
+
+  /**
+   * Returns the image {@code sq.img.<name>}.
+   *
+   * @throws NoSuchFileException if the test data has not been generated
+   */
+  static Path image(String name) throws NoSuchFileException {
+    Path image = directory().resolve("sq.img." + name);
+    if (!Files.isRegularFile(image)) {
+      throw new NoSuchFileException(
+          image.toAbsolutePath().toString(), null, "run generate_test_data.sh first");
+    }
+    return image;
+  }
+}
@@ -0,0 +1,90 @@
+package de.tisoft.jsquashfs.benchmarks;
+
+import de.tisoft.jsquashfs.Unsquashfs;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import picocli.CommandLine;
+
+/** End to end runs of junsquashfs over the generated test images. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class UnsquashfsBenchmark {
+  @Param({"gzip", "lzma", "lzo", "xz", "lz4", "zstd"})
+  private String image;
+
+  private Path file;
+  private Path dest;
+  private PrintStream out;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = TestData.image(image);
+    // the listing goes to System.out, it should not be measured by the terminal
+    out = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(out);
+  }
+
+  @Setup(Level.Invocation)
+  public void createDest() throws IOException {
+    dest = Files.createTempDirectory("jsquashfs-benchmark");
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteDest() throws IOException {
+    try (Stream<Path> files = Files.walk(dest)) {
+      for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Benchmark
+  public void list() {
+    run("-ls");
+  }
+
+  @Benchmark
+  public void extract() {
+    run();
+  }
+
+  private void run(String... options) {
+    String[] args = new String[options.length + 3];
+    args[0] = file.toString();
+    args[1] = "-d";
+    args[2] = dest.resolve("squashfs-root").toString();
+    System.arraycopy(options, 0, args, 3, options.length);
+    int exitCode = new CommandLine(new Unsquashfs()).execute(args);
+    if (exitCode != 0) {
+      throw new IllegalStateException("junsquashfs failed with exit code " + exitCode);
+    }
+  }
+}
@@ -1,5 +1,68 @@
 package de.tisoft.jsquashfs.compression;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public interface Decompressor {
-  byte[] uncompress(byte[] raw_data, int maxSize, boolean padded);
+  /**
+   * Decompresses {@code length} bytes of {@code rawData} starting at {@code offset} into {@code
+   * dest} starting at {@code destOffset}. At most {@code maxSize} bytes are written.
+   *
+   * <p>Implementations keep their codec state confined to the calling thread and reuse it between
+   * calls, so this method does not allocate per block.
+   *
+   * @return the number of decompressed bytes
+   */
+  int uncompress(byte[] rawData, int offset, int length, byte[] dest, int destOffset, int maxSize);
+
+  /**
+   * Decompresses the remaining bytes of {@code rawData} into the remaining space of {@code dest}.
+   * The position of {@code rawData} is moved to its limit, the position of {@code dest} is advanced
+   * by the number of decompressed bytes.
+   *
+   * @return the number of decompressed bytes
+   */
+  default int uncompress(ByteBuffer rawData, ByteBuffer dest) {
+    byte[] raw;
+    int offset;
+    int length = rawData.remaining();
+    if (rawData.hasArray()) {
+      raw = rawData.array();
+      offset = rawData.arrayOffset() + rawData.position();
+    } else {
+      raw = new byte[length];
+      rawData.duplicate().get(raw);
+      offset = 0;
+    }
+    int size;
+    if (dest.hasArray()) {
+      size =
+          uncompress(
+              raw,
+              offset,
+              length,
+              dest.array(),
+              dest.arrayOffset() + dest.position(),
+              dest.remaining());
+      dest.position(dest.position() + size);
+    } else {
+      byte[] buffer = new byte[dest.remaining()];
+      size = uncompress(raw, offset, length, buffer, 0, buffer.length);
+      dest.put(buffer, 0, size);
+    }
+    rawData.position(rawData.limit());
+    return size;
+  }
+
+  default byte[] uncompress(byte[] rawData, int maxSize, boolean padded) {
+    byte[] buffer = new byte[maxSize];
+    int length = uncompress(rawData, 0, rawData.length, buffer, 0, maxSize);
+    if (length == maxSize || padded) {
+      // maxSize reached or padding needed, the remaining contents of the buffer are already 0
+      return buffer;
+    } else {
+      // shrink to actual size
+      return Arrays.copyOf(buffer, length);
+    }
+  }
 }
@@ -0,0 +1,79 @@
+package de.tisoft.jsquashfs.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public final class Streams {
+  private Streams() {}
+
+  /**
+   * Reads the stream until its end into the given buffer. Reading up to the end makes sure, that
+   * the integrity checks of the stream are verified.
+   *
+   * @return the number of bytes read
+   */
+  public static int readFully(InputStream in, byte[] dest, int destOffset, int maxSize)
+      throws IOException {
+    int size = 0;
+    while (size < maxSize) {
+      int read = in.read(dest, destOffset + size, maxSize - size);
+      if (read < 0) {
+        return size;
+      }
+      size += read;
+    }
+    if (in.read() >= 0) {
+      throw new IOException("Decompressed data exceeds " + maxSize + " bytes");
+    }
+    return size;
+  }
+
+  /**
+   * Reads the stream until its end into the remaining space of the given buffer. The position of
+   * the buffer is advanced by the number of bytes read.
+   *
+   * @return the number of bytes read
+   */
+  public static int readFully(InputStream in, ByteBuffer dest) throws IOException {
+    if (dest.hasArray()) {
+      int size =
+          readFully(in, dest.array(), dest.arrayOffset() + dest.position(), dest.remaining());
+      dest.position(dest.position() + size);
+      return size;
+    }
+    byte[] buffer = new byte[dest.remaining()];
+    int size = readFully(in, buffer, 0, buffer.length);
+    dest.put(buffer, 0, size);
+    return size;
+  }
+
+  /** Returns a stream on the remaining bytes of the buffer, without moving its position. */
+  public static InputStream newInputStream(ByteBuffer buffer) {
+    ByteBuffer data = buffer.duplicate();
+    return new InputStream() {
+      @Override
+      public int read() {
+        return data.hasRemaining() ? data.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+          return 0;
+        }
+        if (!data.hasRemaining()) {
+          return -1;
+        }
+        int length = Math.min(len, data.remaining());
+        data.get(b, off, length);
+        return length;
+      }
+
+      @Override
+      public int available() {
+        return data.remaining();
+      }
+    };
+  }
+}
@@ -1,28 +1,67 @@
 package de.tisoft.jsquashfs.compression.gzip;
 
 import de.tisoft.jsquashfs.compression.Decompressor;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.zip.InflaterInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class Gz implements Decompressor {
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+  // room for one more byte, to find out whether the data fits
+  private static final ThreadLocal<byte[]> EXTRA = ThreadLocal.withInitial(() -> new byte[1]);
+
   @Override
-  public byte[] uncompress(byte[] rawData, int maxSize, boolean padded) {
+  public int uncompress(
+      byte[] rawData, int offset, int length, byte[] dest, int destOffset, int maxSize) {
+    Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(rawData, offset, length);
     try {
-      byte[] bytes = new InflaterInputStream(new ByteArrayInputStream(rawData)).readAllBytes();
-      if (bytes.length == maxSize || !padded) {
-        // maxSize reached or no padding needed, the buffer can be returned as is
-        return bytes;
-      } else {
-        // pad the remaining contents of the buffer with 0
-        byte[] paddedBytes = new byte[maxSize];
-        System.arraycopy(paddedBytes, 0, bytes, 0, bytes.length);
-        Arrays.fill(paddedBytes, bytes.length, paddedBytes.length - 1, (byte) 0);
-        return paddedBytes;
+      int size = 0;
+      while (!inflater.finished() && size < maxSize) {
+        int inflated = inflater.inflate(dest, destOffset + size, maxSize - size);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Unexpected end of zlib data");
+        }
+        size += inflated;
       }
-    } catch (IOException e) {
+      checkFinished(inflater, maxSize);
+      return size;
+    } catch (DataFormatException e) {
       throw new IllegalArgumentException(e);
     }
   }
+
+  @Override
+  public int uncompress(ByteBuffer rawData, ByteBuffer dest) {
+    // the inflater reads directly from the buffer, which avoids copying mapped input to the heap
+    Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(rawData);
+    try {
+      int size = 0;
+      while (!inflater.finished() && dest.hasRemaining()) {
+        int inflated = inflater.inflate(dest);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Unexpected end of zlib data");
+        }
+        size += inflated;
+      }
+      checkFinished(inflater, size);
+      rawData.position(rawData.limit());
+      return size;
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Throws, if there is more data than fits into the destination. The end of the stream may only be
+   * seen after the destination is full, so one more byte is inflated.
+   */
+  private static void checkFinished(Inflater inflater, int maxSize) throws DataFormatException {
+    if (!inflater.finished() && inflater.inflate(EXTRA.get()) > 0) {
+      throw new IllegalArgumentException("Decompressed data exceeds " + maxSize + " bytes");
+    }
+  }
 }
@@ -1,26 +1,33 @@
 package de.tisoft.jsquashfs.compression.lz4;
 
 import de.tisoft.jsquashfs.compression.Decompressor;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
 
 public class Lz4 implements Decompressor {
+  // the decompressor is stateless, so a single instance can be shared by all threads
+  private static final LZ4SafeDecompressor DECOMPRESSOR =
+      LZ4Factory.fastestInstance().safeDecompressor();
+
+  @Override
+  public int uncompress(
+      byte[] rawData, int offset, int length, byte[] dest, int destOffset, int maxSize) {
+    return DECOMPRESSOR.decompress(rawData, offset, length, dest, destOffset, maxSize);
+  }
+
   @Override
-  public byte[] uncompress(byte[] rawData, int maxSize, boolean padded) {
-    final byte[] dest = new byte[maxSize];
-    int len = LZ4Factory.fastestInstance().safeDecompressor().decompress(rawData, dest);
-    if (len == maxSize) {
-      // maxSize reached, the buffer can be returned as is
-      return dest;
-    } else if (padded) {
-      // pad the remaining contents of the buffer with 0
-      Arrays.fill(dest, len, dest.length - 1, (byte) 0);
-      return dest;
-    } else {
-      // shrink to actual size
-      byte[] bytes = new byte[len];
-      System.arraycopy(dest, 0, bytes, 0, bytes.length);
-      return bytes;
-    }
+  public int uncompress(ByteBuffer rawData, ByteBuffer dest) {
+    int size =
+        DECOMPRESSOR.decompress(
+            rawData,
+            rawData.position(),
+            rawData.remaining(),
+            dest,
+            dest.position(),
+            dest.remaining());
+    rawData.position(rawData.limit());
+    dest.position(dest.position() + size);
+    return size;
   }
 }
@@ -1,29 +1,37 @@
 package de.tisoft.jsquashfs.compression.lzma;
 
 import de.tisoft.jsquashfs.compression.Decompressor;
+import de.tisoft.jsquashfs.compression.Streams;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import org.tukaani.xz.BasicArrayCache;
 import org.tukaani.xz.LZMAInputStream;
 
 public class Lzma implements Decompressor {
   @Override
-  public byte[] uncompress(byte[] rawData, int maxSize, boolean padded) {
-    try {
-      final LZMAInputStream lzmaInputStream =
-          new LZMAInputStream(new ByteArrayInputStream(rawData));
+  public int uncompress(
+      byte[] rawData, int offset, int length, byte[] dest, int destOffset, int maxSize) {
+    // the array cache recycles the dictionary and the range decoder buffers between blocks
+    try (LZMAInputStream lzmaInputStream =
+        new LZMAInputStream(
+            new ByteArrayInputStream(rawData, offset, length), -1, BasicArrayCache.getInstance())) {
       lzmaInputStream.enableRelaxedEndCondition();
-      byte[] bytes = lzmaInputStream.readAllBytes();
-      if (bytes.length == maxSize || !padded) {
-        // maxSize reached or no padding needed, the buffer can be returned as is
-        return bytes;
-      } else {
-        // pad the remaining contents of the buffer with 0
-        byte[] paddedBytes = new byte[maxSize];
-        System.arraycopy(paddedBytes, 0, bytes, 0, bytes.length);
-        Arrays.fill(paddedBytes, bytes.length, paddedBytes.length - 1, (byte) 0);
-        return paddedBytes;
-      }
+      return Streams.readFully(lzmaInputStream, dest, destOffset, maxSize);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public int uncompress(ByteBuffer rawData, ByteBuffer dest) {
+    // the compressed data is streamed from the buffer, so mapped input is not copied to the heap
+    try (LZMAInputStream lzmaInputStream =
+        new LZMAInputStream(Streams.newInputStream(rawData), -1, BasicArrayCache.getInstance())) {
+      lzmaInputStream.enableRelaxedEndCondition();
+      int size = Streams.readFully(lzmaInputStream, dest);
+      rawData.position(rawData.limit());
+      return size;
     } catch (IOException e) {
       throw new IllegalArgumentException(e);
     }
@@ -1,32 +1,76 @@
 package de.tisoft.jsquashfs.compression.lzo;
 
 import de.tisoft.jsquashfs.compression.Decompressor;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import org.anarres.lzo.LzoAlgorithm;
 import org.anarres.lzo.LzoConstraint;
+import org.anarres.lzo.LzoDecompressor;
 import org.anarres.lzo.LzoLibrary;
+import org.anarres.lzo.LzoTransformer;
 import org.anarres.lzo.lzo_uintp;
 
 /** This file links against LZO and is therefore released under the terms of the GPL */
 public final class Lzo implements Decompressor {
-  public byte[] uncompress(byte[] rawData, int maxSize, boolean padded) {
-    byte[] buffer = new byte[maxSize];
-    lzo_uintp outLen = new lzo_uintp(buffer.length);
-    LzoLibrary.getInstance()
-        .newDecompressor(LzoAlgorithm.LZO1X, LzoConstraint.SAFETY)
-        .decompress(rawData, 0, rawData.length, buffer, 0, outLen);
-    if (outLen.value == maxSize) {
-      // maxSize reached, the buffer can be returned as is
-      return buffer;
-    } else if (padded) {
-      // pad the remaining contents of the buffer with 0
-      Arrays.fill(buffer, outLen.value, buffer.length - 1, (byte) 0);
-      return buffer;
+  // the decompressor is stateless, so a single instance can be shared by all threads
+  private static final LzoDecompressor DECOMPRESSOR =
+      LzoLibrary.getInstance().newDecompressor(LzoAlgorithm.LZO1X, LzoConstraint.SAFETY);
+  // the input and the output array of each thread
+  private static final ThreadLocal<byte[][]> SCRATCH =
+      ThreadLocal.withInitial(() -> new byte[][] {new byte[0], new byte[0]});
+
+  @Override
+  public int uncompress(
+      byte[] rawData, int offset, int length, byte[] dest, int destOffset, int maxSize) {
+    lzo_uintp outLen = new lzo_uintp(maxSize);
+    int result = DECOMPRESSOR.decompress(rawData, offset, length, dest, destOffset, outLen);
+    if (result != LzoTransformer.LZO_E_OK) {
+      throw new IllegalArgumentException(DECOMPRESSOR.toErrorString(result));
+    }
+    return outLen.value;
+  }
+
+  /**
+   * The decompressor only decodes arrays. Buffers without an array are passed through scratch
+   * arrays of the calling thread, which are kept for the next block.
+   */
+  @Override
+  public int uncompress(ByteBuffer rawData, ByteBuffer dest) {
+    byte[][] scratch = SCRATCH.get();
+    int length = rawData.remaining();
+    byte[] raw;
+    int offset;
+    if (rawData.hasArray()) {
+      raw = rawData.array();
+      offset = rawData.arrayOffset() + rawData.position();
     } else {
-      // shrink to actual size
-      byte[] bytes = new byte[outLen.value];
-      System.arraycopy(buffer, 0, bytes, 0, bytes.length);
-      return bytes;
+      raw = scratch(scratch, 0, length);
+      rawData.duplicate().get(raw, 0, length);
+      offset = 0;
+    }
+    int size;
+    if (dest.hasArray()) {
+      size =
+          uncompress(
+              raw,
+              offset,
+              length,
+              dest.array(),
+              dest.arrayOffset() + dest.position(),
+              dest.remaining());
+      dest.position(dest.position() + size);
+    } else {
+      byte[] buffer = scratch(scratch, 1, dest.remaining());
+      size = uncompress(raw, offset, length, buffer, 0, dest.remaining());
+      dest.put(buffer, 0, size);
+    }
+    rawData.position(rawData.limit());
+    return size;
+  }
+
+  private static byte[] scratch(byte[][] scratch, int index, int size) {
+    if (scratch[index].length < size) {
+      scratch[index] = new byte[size];
     }
+    return scratch[index];
   }
 }
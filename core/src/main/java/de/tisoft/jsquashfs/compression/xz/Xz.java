@@ -1,26 +1,36 @@
 package de.tisoft.jsquashfs.compression.xz;
 
 import de.tisoft.jsquashfs.compression.Decompressor;
+import de.tisoft.jsquashfs.compression.Streams;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import org.tukaani.xz.BasicArrayCache;
 import org.tukaani.xz.SingleXZInputStream;
 
 public class Xz implements Decompressor {
   @Override
-  public byte[] uncompress(byte[] rawData, int maxSize, boolean padded) {
-    try {
-      byte[] bytes = new SingleXZInputStream(new ByteArrayInputStream(rawData)).readAllBytes();
-      if (bytes.length == maxSize || !padded) {
-        // maxSize reached or no padding needed, the buffer can be returned as is
-        return bytes;
-      } else {
-        // pad the remaining contents of the buffer with 0
-        byte[] paddedBytes = new byte[maxSize];
-        System.arraycopy(paddedBytes, 0, bytes, 0, bytes.length);
-        Arrays.fill(paddedBytes, bytes.length, paddedBytes.length - 1, (byte) 0);
-        return paddedBytes;
-      }
+  public int uncompress(
+      byte[] rawData, int offset, int length, byte[] dest, int destOffset, int maxSize) {
+    // the array cache recycles the dictionary and the range decoder buffers between blocks
+    try (SingleXZInputStream xzInputStream =
+        new SingleXZInputStream(
+            new ByteArrayInputStream(rawData, offset, length), -1, BasicArrayCache.getInstance())) {
+      return Streams.readFully(xzInputStream, dest, destOffset, maxSize);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public int uncompress(ByteBuffer rawData, ByteBuffer dest) {
+    // the compressed data is streamed from the buffer, so mapped input is not copied to the heap
+    try (SingleXZInputStream xzInputStream =
+        new SingleXZInputStream(
+            Streams.newInputStream(rawData), -1, BasicArrayCache.getInstance())) {
+      int size = Streams.readFully(xzInputStream, dest);
+      rawData.position(rawData.limit());
+      return size;
     } catch (IOException e) {
       throw new IllegalArgumentException(e);
     }
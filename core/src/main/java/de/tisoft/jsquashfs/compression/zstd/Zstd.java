@@ -1,28 +1,63 @@
 package de.tisoft.jsquashfs.compression.zstd;
 
-import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdDecompressCtx;
 import de.tisoft.jsquashfs.compression.Decompressor;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 public class Zstd implements Decompressor {
-  @Override
-  public byte[] uncompress(byte[] rawData, int maxSize, boolean padded) {
-    try {
-      byte[] bytes = new ZstdInputStream(new ByteArrayInputStream(rawData)).readAllBytes();
-      if (bytes.length == maxSize || !padded) {
-        // maxSize reached or no padding needed, the buffer can be returned as is
-        return bytes;
-      } else {
-        // pad the remaining contents of the buffer with 0
-        byte[] paddedBytes = new byte[maxSize];
-        System.arraycopy(paddedBytes, 0, bytes, 0, bytes.length);
-        Arrays.fill(paddedBytes, bytes.length, paddedBytes.length - 1, (byte) 0);
-        return paddedBytes;
+  /**
+   * The codec state of a thread. The context only decodes between direct buffers, so a buffer on
+   * the heap is passed through a direct scratch buffer, which is kept for the next block.
+   */
+  private static final class State {
+    private final ZstdDecompressCtx context = new ZstdDecompressCtx();
+    private ByteBuffer scratch = ByteBuffer.allocateDirect(0);
+
+    private ByteBuffer scratch(int size) {
+      if (scratch.capacity() < size) {
+        scratch = ByteBuffer.allocateDirect(size);
       }
-    } catch (IOException e) {
-      throw new IllegalArgumentException(e);
+      scratch.clear().limit(size);
+      return scratch;
+    }
+  }
+
+  private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+  @Override
+  public int uncompress(
+      byte[] rawData, int offset, int length, byte[] dest, int destOffset, int maxSize) {
+    return STATE
+        .get()
+        .context
+        .decompressByteArray(dest, destOffset, maxSize, rawData, offset, length);
+  }
+
+  @Override
+  public int uncompress(ByteBuffer rawData, ByteBuffer dest) {
+    if (!rawData.isDirect() && !dest.isDirect()) {
+      // decodes between the arrays
+      return Decompressor.super.uncompress(rawData, dest);
+    }
+    State state = STATE.get();
+    ByteBuffer in = rawData;
+    ByteBuffer out = dest;
+    if (!rawData.isDirect()) {
+      in = state.scratch(rawData.remaining());
+      in.put(rawData.duplicate()).flip();
+    } else if (!dest.isDirect()) {
+      // mapped blocks are decoded without copying them to the heap first
+      out = state.scratch(dest.remaining());
+    }
+    int size =
+        state.context.decompressDirectByteBuffer(
+            out, out.position(), out.remaining(), in, in.position(), in.remaining());
+    rawData.position(rawData.limit());
+    if (out == dest) {
+      dest.position(dest.position() + size);
+    } else {
+      dest.put(out.limit(out.position() + size));
     }
+    return size;
   }
 }
@@ -0,0 +1,34 @@
+package de.tisoft.jsquashfs.image;
+
+import de.tisoft.jsquashfs.parser.LruCache;
+
+/**
+ * A bounded LRU cache of decompressed data blocks, keyed by the position of the block in the image.
+ *
+ * <p>All channels of an image share its cache. Fragment blocks, which contain the tails of many
+ * small files, and blocks read by several threads are therefore only decompressed once as long as
+ * they are not evicted. The returned arrays are shared and must not be modified.
+ */
+public final class BlockCache extends LruCache<byte[]> {
+  /** Default budget for decompressed blocks, in bytes. */
+  public static final long DEFAULT_SIZE = 32L << 20;
+
+  private final long blockSize;
+
+  BlockCache(long size, long blockSize) {
+    super(capacity(size, blockSize));
+    this.blockSize = blockSize;
+  }
+
+  /** Sets the budget for decompressed blocks in bytes, evicting the least recently used ones. */
+  public void setSize(long size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    setCapacity(capacity(size, blockSize));
+  }
+
+  private static int capacity(long size, long blockSize) {
+    return (int) Math.min(Integer.MAX_VALUE, size / blockSize);
+  }
+}
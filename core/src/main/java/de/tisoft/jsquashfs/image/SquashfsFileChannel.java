@@ -0,0 +1,163 @@
+package de.tisoft.jsquashfs.image;
+
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+/**
+ * A read only channel on the contents of a file. The offsets of the data blocks are computed from
+ * the block sizes of the inode, so a read only decompresses the blocks it covers. Blocks come from
+ * the {@link BlockCache} of the image, and the current one is kept, so sequential reads look up
+ * every block once.
+ */
+final class SquashfsFileChannel implements SeekableByteChannel {
+  private final SquashfsImage image;
+  private final long size;
+  private final long[] blockStarts;
+  private final long[] blockSizes;
+  private final long fragmentStart;
+  private final long fragmentSize;
+  private final int fragmentOffset;
+  private byte[] buffer;
+  private int bufferedBlock = -1;
+  private long position;
+  private boolean open = true;
+
+  SquashfsFileChannel(
+      SquashfsImage image,
+      long size,
+      long blocksStart,
+      List<Long> blockSizes,
+      Squashfs.Fragment fragment,
+      long fragmentOffset) {
+    this(
+        image,
+        size,
+        blocksStart,
+        blockSizes.stream().mapToLong(Long::longValue).toArray(),
+        fragment != null ? fragment.start() : -1,
+        fragment != null ? fragment.compressionAndLen() : 0,
+        (int) fragmentOffset);
+  }
+
+  /**
+   * @param blockSizes the sizes of the data blocks, as stored in the inode
+   * @param fragmentStart the start of the fragment block with the tail of the file, or -1 if the
+   *     file has no tail
+   * @param fragmentSize the size of the fragment block, as stored in the fragment table
+   */
+  SquashfsFileChannel(
+      SquashfsImage image,
+      long size,
+      long blocksStart,
+      long[] blockSizes,
+      long fragmentStart,
+      long fragmentSize,
+      int fragmentOffset) {
+    this.image = image;
+    this.size = size;
+    this.blockStarts = new long[blockSizes.length];
+    this.blockSizes = blockSizes;
+    long start = blocksStart;
+    for (int i = 0; i < blockSizes.length; i++) {
+      this.blockStarts[i] = start;
+      start += blockSizes[i] & 0xFFFFFF;
+    }
+    this.fragmentStart = fragmentStart;
+    this.fragmentSize = fragmentSize;
+    this.fragmentOffset = fragmentOffset;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (position >= size) {
+      return -1;
+    }
+    int read = 0;
+    while (dst.hasRemaining() && position < size) {
+      int block = (int) (position / image.blockSize());
+      int offset = load(block) + (int) (position % image.blockSize());
+      int length =
+          (int) Math.min(Math.min(dst.remaining(), buffer.length - offset), size - position);
+      if (length <= 0) {
+        throw new IOException("Block " + block + " is shorter than expected");
+      }
+      dst.put(buffer, offset, length);
+      position += length;
+      read += length;
+    }
+    return read;
+  }
+
+  /**
+   * Makes sure the given block is decompressed into the buffer.
+   *
+   * @return the offset of the block contents in the buffer
+   */
+  private int load(int block) throws IOException {
+    if (block != bufferedBlock) {
+      if (block < blockStarts.length) {
+        buffer = image.block(blockStarts[block], blockSizes[block]);
+      } else if (fragmentStart >= 0) {
+        buffer = image.block(fragmentStart, fragmentSize);
+      } else {
+        throw new IOException("Missing block " + block);
+      }
+      bufferedBlock = block;
+    }
+    return block < blockStarts.length ? 0 : fragmentOffset;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  @Override
+  public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+    ensureOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Negative position: " + newPosition);
+    }
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    ensureOpen();
+    return size;
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public synchronized void close() {
+    open = false;
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
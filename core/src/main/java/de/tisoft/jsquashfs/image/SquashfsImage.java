@@ -0,0 +1,277 @@
+package de.tisoft.jsquashfs.image;
+
+import de.tisoft.jsquashfs.parser.Decompress;
+import de.tisoft.jsquashfs.parser.InodeLookup;
+import de.tisoft.jsquashfs.parser.MappedKaitaiStream;
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.function.BiFunction;
+
+/**
+ * Random access to the contents of a squashfs image, without extracting it.
+ *
+ * <p>Paths are resolved through the directory tables and file contents are read block by block, so
+ * only the metablocks and data blocks that are actually needed are read and decompressed.
+ * Decompressed data blocks are shared by all channels through a {@link BlockCache}. Instances are
+ * thread safe.
+ */
+public final class SquashfsImage implements Closeable {
+  private final Squashfs squashfs;
+  private final Squashfs.Compressor compressor;
+  private final int blockSize;
+  private final BlockCache blocks;
+  private final byte[] sparse;
+  private final SquashfsIndex index;
+
+  private SquashfsImage(Squashfs squashfs, SquashfsIndex index) {
+    this.squashfs = squashfs;
+    this.index = index;
+    this.compressor = squashfs.superblock().compressor();
+    this.blockSize = (int) squashfs.superblock().blockSize();
+    this.blocks = new BlockCache(BlockCache.DEFAULT_SIZE, blockSize);
+    this.sparse = new byte[blockSize];
+  }
+
+  /** Opens an image. The image is memory mapped, so it may be larger than 2 GiB. */
+  public static SquashfsImage open(Path path) throws IOException {
+    return new SquashfsImage(new Squashfs(new MappedKaitaiStream(path)), null);
+  }
+
+  /**
+   * Wraps an image, that has already been parsed. Closing the returned image closes the stream of
+   * the parser.
+   */
+  public static SquashfsImage of(Squashfs squashfs) {
+    return new SquashfsImage(squashfs, null);
+  }
+
+  /**
+   * Opens an image with a {@link SquashfsIndex}, which resolves paths without decompressing the
+   * directory and inode tables. If the index does not exist, has an unknown format or was built
+   * from a different image, it is built and written first. Other errors reading the index are
+   * thrown.
+   *
+   * @param index the index file, usually next to the image
+   */
+  public static SquashfsImage open(Path path, Path index) throws IOException {
+    SquashfsImage image = open(path);
+    SquashfsIndex sidecar;
+    try {
+      sidecar = SquashfsIndex.open(image, index);
+    } catch (NoSuchFileException | SquashfsIndex.StaleIndexException e) {
+      SquashfsIndex.write(image, index);
+      sidecar = SquashfsIndex.open(image, index);
+    }
+    return new SquashfsImage(image.squashfs, sidecar);
+  }
+
+  /**
+   * Returns the parsed image. The parser is not thread safe, callers have to synchronize on the
+   * returned object.
+   */
+  public Squashfs squashfs() {
+    return squashfs;
+  }
+
+  /** Returns the cache of decompressed data blocks, which is shared by all channels. */
+  public BlockCache blockCache() {
+    return blocks;
+  }
+
+  public Squashfs.InodeHeader root() {
+    synchronized (squashfs) {
+      return Metadata.inode(squashfs, squashfs.superblock().rootInodeRef().raw());
+    }
+  }
+
+  /**
+   * Returns the inode with the given number. Images with an export table only read the metablock
+   * with the reference of the inode, see {@link InodeLookup}.
+   *
+   * @throws IllegalArgumentException if the image has no inode with that number
+   */
+  public Squashfs.InodeHeader inode(long inodeNumber) {
+    synchronized (squashfs) {
+      return InodeLookup.of(squashfs).inode(inodeNumber);
+    }
+  }
+
+  /**
+   * Resolves a path, relative to the root of the image. Images opened with an index find the path
+   * in the index, otherwise each path component is looked up with a binary search over the
+   * directory index, if the directory has one.
+   */
+  public Optional<Squashfs.InodeHeader> lookup(String path) {
+    synchronized (squashfs) {
+      if (index != null) {
+        int entry = index.find(path);
+        return entry < 0
+            ? Optional.empty()
+            : Optional.of(Metadata.inode(squashfs, index.inode(entry)));
+      }
+      return Optional.ofNullable(
+          resolve(
+              root(),
+              path,
+              (directory, name) -> {
+                if (!isDirectory(directory)) {
+                  return null;
+                }
+                Squashfs.DirectoryEntry directoryEntry = Metadata.lookup(directory, name);
+                return directoryEntry == null
+                    ? null
+                    : Metadata.inode(
+                        squashfs, directoryEntry._parent().start(), directoryEntry.offset());
+              }));
+    }
+  }
+
+  /**
+   * Resolves a path one component after another, for lookups through the directory tables and
+   * through the index alike. "." is skipped and ".." goes back to the entry the previous component
+   * was found in, or stays at the root. Every other component has to exist, even if a later ".."
+   * leaves it again.
+   *
+   * @param child returns the entry with a name in a directory, or null if the entry is no directory
+   *     or has no such name
+   * @return the entry, or null if a component does not exist
+   */
+  static <T> T resolve(T root, String path, BiFunction<T, String, T> child) {
+    Deque<T> parents = new ArrayDeque<>();
+    T current = root;
+    for (String name : path.split("/")) {
+      if (name.isEmpty() || name.equals(".")) {
+        continue;
+      }
+      if (name.equals("..")) {
+        if (!parents.isEmpty()) {
+          current = parents.pop();
+        }
+        continue;
+      }
+      T next = child.apply(current, name);
+      if (next == null) {
+        return null;
+      }
+      parents.push(current);
+      current = next;
+    }
+    return current;
+  }
+
+  public SeekableByteChannel newByteChannel(String path) throws IOException {
+    if (index != null) {
+      int entry = index.find(path);
+      if (entry < 0) {
+        throw new NoSuchFileException(path);
+      }
+      return index.newByteChannel(this, entry, path);
+    }
+    return newByteChannel(lookup(path).orElseThrow(() -> new NoSuchFileException(path)));
+  }
+
+  /**
+   * Opens a channel on the contents of a file. Reads only decompress the blocks covering the
+   * requested range.
+   */
+  public SeekableByteChannel newByteChannel(Squashfs.InodeHeader inodeHeader) throws IOException {
+    synchronized (squashfs) {
+      if (inodeHeader.type() == Squashfs.InodeType.BASIC_FILE) {
+        Squashfs.InodeHeaderBasicFile file = (Squashfs.InodeHeaderBasicFile) inodeHeader.header();
+        return new SquashfsFileChannel(
+            this,
+            file.fileSize(),
+            file.blocksStart(),
+            file.blockSizes(),
+            Metadata.fragment(squashfs, file.fragIndex()),
+            file.blockOffset());
+      } else if (inodeHeader.type() == Squashfs.InodeType.EXTENDED_FILE) {
+        Squashfs.InodeHeaderExtendedFile file =
+            (Squashfs.InodeHeaderExtendedFile) inodeHeader.header();
+        return new SquashfsFileChannel(
+            this,
+            file.fileSize(),
+            file.blocksStart(),
+            file.blockSizes(),
+            Metadata.fragment(squashfs, file.fragIndex()),
+            file.blockOffset());
+      } else {
+        throw new IOException("Not a regular file: " + inodeHeader.type());
+      }
+    }
+  }
+
+  public InputStream newInputStream(String path) throws IOException {
+    return Channels.newInputStream(newByteChannel(path));
+  }
+
+  public InputStream newInputStream(Squashfs.InodeHeader inodeHeader) throws IOException {
+    return Channels.newInputStream(newByteChannel(inodeHeader));
+  }
+
+  /**
+   * Releases the decompressed data blocks and metablocks of the image, they are decompressed again
+   * when they are read the next time. The image stays open.
+   */
+  public void release() {
+    blocks.clear();
+    Metadata.release(squashfs);
+  }
+
+  /**
+   * Releases the caches and closes the stream of the image. Memory mapped images stay mapped until
+   * the mappings are garbage collected, see {@link MappedKaitaiStream}.
+   */
+  @Override
+  public void close() throws IOException {
+    release();
+    squashfs._io().close();
+  }
+
+  int blockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Returns the decompressed data block at {@code start}. The returned array is shared and must not
+   * be modified.
+   *
+   * @param compressionAndLen the size of the block as stored in the inode or fragment table
+   */
+  byte[] block(long start, long compressionAndLen) throws IOException {
+    int length = (int) (compressionAndLen & 0xFFFFFF);
+    if (length == 0) {
+      // a sparse block has no data, it shares its position with the next block
+      return sparse;
+    }
+    boolean compressed = (compressionAndLen & 0x1000000) == 0;
+    return blocks.get(
+        start,
+        offset -> {
+          try {
+            // reading a slice of the mapping leaves the parser position alone, so no lock is needed
+            return new Decompress(compressed, compressor, blockSize, false)
+                .decode(MappedKaitaiStream.read(squashfs._io(), offset, length));
+          } catch (BufferUnderflowException e) {
+            throw new EOFException("Data block at " + offset + " exceeds the image");
+          }
+        });
+  }
+
+  private static boolean isDirectory(Squashfs.InodeHeader inodeHeader) {
+    return inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY;
+  }
+}
@@ -0,0 +1,400 @@
+package de.tisoft.jsquashfs.image;
+
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sidecar file of an image, that maps every path to its inode reference and stores the block
+ * lists of the files.
+ *
+ * <p>The index is memory mapped. Each component of a path is found with a binary search over the
+ * sorted paths, and a channel on a file is created from the block list in the index, so neither the
+ * directory tables nor the inode table have to be decompressed. The index records the superblock
+ * fields of the image it was built from, and is rejected when they don't match the image.
+ */
+public final class SquashfsIndex {
+  // "JSQI", read as a little endian int
+  private static final int MAGIC = 0x4951534A;
+  private static final int VERSION = 1;
+
+  // layout of the header
+  private static final int SUPERBLOCK = 8;
+  private static final int SUPERBLOCK_FIELDS = 8;
+  private static final int ENTRY_COUNT = 72;
+  private static final int NAMES = 80;
+  private static final int BLOCKS = 88;
+  private static final int HEADER_SIZE = 96;
+
+  // layout of an entry, followed by the names and the block sizes of all files
+  private static final int NAME = 0;
+  private static final int NAME_LENGTH = 8;
+  private static final int TYPE = 12;
+  private static final int INODE = 16;
+  private static final int FILE_SIZE = 24;
+  private static final int BLOCKS_START = 32;
+  private static final int BLOCK_INDEX = 40;
+  private static final int BLOCK_COUNT = 44;
+  private static final int FRAGMENT_START = 48;
+  private static final int FRAGMENT_SIZE = 56;
+  private static final int FRAGMENT_OFFSET = 60;
+  private static final int ENTRY_SIZE = 64;
+
+  private static final int TYPE_OTHER = 0;
+  private static final int TYPE_FILE = 1;
+  private static final int TYPE_DIRECTORY = 2;
+
+  private final ByteBuffer index;
+  private final int entries;
+  private final long names;
+  private final long blocks;
+
+  private SquashfsIndex(ByteBuffer index) {
+    this.index = index;
+    this.entries = index.getInt(ENTRY_COUNT);
+    this.names = index.getLong(NAMES);
+    this.blocks = index.getLong(BLOCKS);
+  }
+
+  /**
+   * Opens the index of an image.
+   *
+   * @throws StaleIndexException if the index has an unknown format or was not built from this image
+   * @throws IOException if the index can't be read
+   */
+  public static SquashfsIndex open(SquashfsImage image, Path path) throws IOException {
+    ByteBuffer index;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+        throw new StaleIndexException("Invalid index size " + channel.size() + ": " + path);
+      }
+      index =
+          channel
+              .map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+              .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+      throw new StaleIndexException("Not an index: " + path);
+    }
+    long[] superblock = superblock(image.squashfs());
+    for (int i = 0; i < SUPERBLOCK_FIELDS; i++) {
+      if (index.getLong(SUPERBLOCK + i * Long.BYTES) != superblock[i]) {
+        throw new StaleIndexException("Index " + path + " was built from a different image");
+      }
+    }
+    long size = index.getLong(BLOCKS);
+    if (size > index.capacity()
+        || index.getLong(NAMES) > size
+        || HEADER_SIZE + (long) index.getInt(ENTRY_COUNT) * ENTRY_SIZE > index.getLong(NAMES)) {
+      throw new StaleIndexException("Truncated index: " + path);
+    }
+    return new SquashfsIndex(index);
+  }
+
+  /**
+   * Builds the index of an image by walking its directory tree. The index is written to a temporary
+   * file first and then moved into place, so readers never see a partial index.
+   */
+  public static void write(SquashfsImage image, Path path) throws IOException {
+    Squashfs squashfs = image.squashfs();
+    List<Entry> list = new ArrayList<>();
+    synchronized (squashfs) {
+      long root = squashfs.superblock().rootInodeRef().raw();
+      collect(Metadata.inode(squashfs, root), root, "", list);
+    }
+    list.sort((a, b) -> Arrays.compareUnsigned(a.name, b.name));
+
+    long names = HEADER_SIZE + (long) list.size() * ENTRY_SIZE;
+    long blocks = names;
+    long blockCount = 0;
+    for (Entry entry : list) {
+      blocks += entry.name.length;
+      blockCount += entry.blockSizes.length;
+    }
+    long size = blocks + blockCount * Integer.BYTES;
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Can't handle indexes larger than 2 GiB");
+    }
+
+    ByteBuffer index = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    index.putInt(0, MAGIC).putInt(4, VERSION);
+    long[] superblock = superblock(squashfs);
+    for (int i = 0; i < SUPERBLOCK_FIELDS; i++) {
+      index.putLong(SUPERBLOCK + i * Long.BYTES, superblock[i]);
+    }
+    index.putInt(ENTRY_COUNT, list.size()).putLong(NAMES, names).putLong(BLOCKS, blocks);
+    int name = (int) names;
+    int block = 0;
+    for (int i = 0; i < list.size(); i++) {
+      Entry entry = list.get(i);
+      int offset = HEADER_SIZE + i * ENTRY_SIZE;
+      index
+          .putLong(offset + NAME, name)
+          .putInt(offset + NAME_LENGTH, entry.name.length)
+          .putInt(offset + TYPE, entry.type)
+          .putLong(offset + INODE, entry.inode)
+          .putLong(offset + FILE_SIZE, entry.fileSize)
+          .putLong(offset + BLOCKS_START, entry.blocksStart)
+          .putInt(offset + BLOCK_INDEX, block)
+          .putInt(offset + BLOCK_COUNT, entry.blockSizes.length)
+          .putLong(offset + FRAGMENT_START, entry.fragmentStart)
+          .putInt(offset + FRAGMENT_SIZE, (int) entry.fragmentSize)
+          .putInt(offset + FRAGMENT_OFFSET, entry.fragmentOffset);
+      index.position(name);
+      index.put(entry.name);
+      name += entry.name.length;
+      for (long blockSize : entry.blockSizes) {
+        index.putInt((int) blocks + block * Integer.BYTES, (int) blockSize);
+        block++;
+      }
+    }
+
+    Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), ".index", ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        index.clear();
+        while (index.hasRemaining()) {
+          channel.write(index);
+        }
+      }
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Returns the number of entries, that is all files and directories including the root. */
+  public int size() {
+    return entries;
+  }
+
+  /**
+   * Finds the entry of a path, relative to the root of the image.
+   *
+   * @return the number of the entry, or -1 if the image has no such path
+   */
+  int find(String path) {
+    Integer entry =
+        SquashfsImage.resolve(
+            search(new byte[0]),
+            path,
+            (directory, name) -> {
+              if (directory < 0 || index.getInt(offset(directory) + TYPE) != TYPE_DIRECTORY) {
+                return null;
+              }
+              int child = search(child(directory, name));
+              return child < 0 ? null : child;
+            });
+    return entry == null ? -1 : entry;
+  }
+
+  /** Finds the entry with a name with a binary search, returns -1 if there is none. */
+  private int search(byte[] name) {
+    int low = 0;
+    int high = entries - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int compare = compare(mid, name);
+      if (compare < 0) {
+        low = mid + 1;
+      } else if (compare > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the inode reference of an entry, as used by {@link Metadata#inode(Squashfs, long)}. */
+  long inode(int entry) {
+    return index.getLong(offset(entry) + INODE);
+  }
+
+  /** Opens a channel on the file of an entry, without reading its inode. */
+  SeekableByteChannel newByteChannel(SquashfsImage image, int entry, String path)
+      throws IOException {
+    int offset = offset(entry);
+    if (index.getInt(offset + TYPE) != TYPE_FILE) {
+      throw new IOException("Not a regular file: " + path);
+    }
+    long[] blockSizes = new long[index.getInt(offset + BLOCK_COUNT)];
+    long start = blocks + (long) index.getInt(offset + BLOCK_INDEX) * Integer.BYTES;
+    for (int i = 0; i < blockSizes.length; i++) {
+      blockSizes[i] = index.getInt((int) start + i * Integer.BYTES) & 0xFFFFFFFFL;
+    }
+    return new SquashfsFileChannel(
+        image,
+        index.getLong(offset + FILE_SIZE),
+        index.getLong(offset + BLOCKS_START),
+        blockSizes,
+        index.getLong(offset + FRAGMENT_START),
+        index.getInt(offset + FRAGMENT_SIZE) & 0xFFFFFFFFL,
+        index.getInt(offset + FRAGMENT_OFFSET));
+  }
+
+  /** Compares the name of an entry with {@code name}, byte by byte like the entries are sorted. */
+  private int compare(int entry, byte[] name) {
+    int offset = offset(entry);
+    int start = (int) index.getLong(offset + NAME);
+    int length = index.getInt(offset + NAME_LENGTH);
+    for (int i = 0; i < Math.min(length, name.length); i++) {
+      int compare = Byte.compareUnsigned(index.get(start + i), name[i]);
+      if (compare != 0) {
+        return compare;
+      }
+    }
+    return Integer.compare(length, name.length);
+  }
+
+  private static int offset(int entry) {
+    return HEADER_SIZE + entry * ENTRY_SIZE;
+  }
+
+  /** Returns the name of the entry {@code name} in a directory, the way the entries are named. */
+  private byte[] child(int directory, String name) {
+    int offset = offset(directory);
+    int start = (int) index.getLong(offset + NAME);
+    int length = index.getInt(offset + NAME_LENGTH);
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (length == 0) {
+      return bytes;
+    }
+    byte[] child = new byte[length + 1 + bytes.length];
+    for (int i = 0; i < length; i++) {
+      child[i] = index.get(start + i);
+    }
+    child[length] = '/';
+    System.arraycopy(bytes, 0, child, length + 1, bytes.length);
+    return child;
+  }
+
+  /** Returns the superblock fields, that change whenever an image is rebuilt. */
+  private static long[] superblock(Squashfs squashfs) {
+    Squashfs.Superblock superblock = squashfs.superblock();
+    return new long[] {
+      superblock.bytesUsed(),
+      superblock.modTime(),
+      superblock.inodeTableStart(),
+      superblock.directoryTableStart(),
+      superblock.fragmentTableStart(),
+      superblock.idTableStart(),
+      superblock.exportTableStart(),
+      superblock.rootInodeRef().raw()
+    };
+  }
+
+  private static void collect(
+      Squashfs.InodeHeader inodeHeader, long inode, String path, List<Entry> list) {
+    Entry entry = new Entry(path.getBytes(StandardCharsets.UTF_8), inode);
+    list.add(entry);
+    switch (inodeHeader.type()) {
+      case BASIC_DIRECTORY:
+      case EXTENDED_DIRECTORY:
+        entry.type = TYPE_DIRECTORY;
+        for (Squashfs.DirectoryHeader directoryHeader :
+            Metadata.directory(inodeHeader).directoryHeader()) {
+          if (directoryHeader.directoryEntry() == null) {
+            continue;
+          }
+          for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+            collect(
+                Metadata.inode(
+                    inodeHeader._root(), directoryHeader.start(), directoryEntry.offset()),
+                (directoryHeader.start() << 16) | directoryEntry.offset(),
+                path.isEmpty() ? directoryEntry.name() : path + '/' + directoryEntry.name(),
+                list);
+          }
+        }
+        break;
+      case BASIC_FILE:
+        {
+          Squashfs.InodeHeaderBasicFile file = (Squashfs.InodeHeaderBasicFile) inodeHeader.header();
+          entry.file(
+              file.fileSize(),
+              file.blocksStart(),
+              file.blockSizes(),
+              Metadata.fragment(inodeHeader._root(), file.fragIndex()),
+              file.blockOffset());
+          break;
+        }
+      case EXTENDED_FILE:
+        {
+          Squashfs.InodeHeaderExtendedFile file =
+              (Squashfs.InodeHeaderExtendedFile) inodeHeader.header();
+          entry.file(
+              file.fileSize(),
+              file.blocksStart(),
+              file.blockSizes(),
+              Metadata.fragment(inodeHeader._root(), file.fragIndex()),
+              file.blockOffset());
+          break;
+        }
+      default:
+        break;
+    }
+  }
+
+  private static final class Entry {
+    private final byte[] name;
+    private final long inode;
+    private int type = TYPE_OTHER;
+    private long fileSize;
+    private long blocksStart;
+    private long[] blockSizes = new long[0];
+    private long fragmentStart = -1;
+    private long fragmentSize;
+    private int fragmentOffset;
+
+    private Entry(byte[] name, long inode) {
+      this.name = name;
+      this.inode = inode;
+    }
+
+    private void file(
+        long fileSize,
+        long blocksStart,
+        List<Long> blockSizes,
+        Squashfs.Fragment fragment,
+        long fragmentOffset) {
+      this.type = TYPE_FILE;
+      this.fileSize = fileSize;
+      this.blocksStart = blocksStart;
+      this.blockSizes = blockSizes.stream().mapToLong(Long::longValue).toArray();
+      if (fragment != null) {
+        this.fragmentStart = fragment.start();
+        this.fragmentSize = fragment.compressionAndLen();
+      }
+      this.fragmentOffset = (int) fragmentOffset;
+    }
+  }
+
+  /**
+   * Thrown when an index has an unknown format or was built from a different image, so it has to be
+   * built again.
+   */
+  public static final class StaleIndexException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    StaleIndexException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package de.tisoft.jsquashfs.nio;
+
+import java.io.IOException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/** A view of the attributes of an inode. Images are read only, so all setters fail. */
+final class SquashfsFileAttributeView implements PosixFileAttributeView {
+  private final SquashfsPath path;
+  private final String name;
+
+  SquashfsFileAttributeView(SquashfsPath path, String name) {
+    this.path = path;
+    this.name = name;
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  @Override
+  public PosixFileAttributes readAttributes() throws IOException {
+    return path.getFileSystem().attributes(path);
+  }
+
+  @Override
+  public UserPrincipal getOwner() throws IOException {
+    return readAttributes().owner();
+  }
+
+  @Override
+  public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  @Override
+  public void setOwner(UserPrincipal owner) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  @Override
+  public void setPermissions(Set<PosixFilePermission> perms) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  @Override
+  public void setGroup(GroupPrincipal group) {
+    throw new ReadOnlyFileSystemException();
+  }
+}
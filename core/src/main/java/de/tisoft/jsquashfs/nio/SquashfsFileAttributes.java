@@ -0,0 +1,164 @@
+package de.tisoft.jsquashfs.nio;
+
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The attributes of an inode. Owner and group are the numeric ids stored in the image, as the users
+ * of the system the image was created on are unknown.
+ */
+final class SquashfsFileAttributes implements PosixFileAttributes {
+  private static final PosixFilePermission[] PERMISSIONS = {
+    PosixFilePermission.OTHERS_EXECUTE,
+    PosixFilePermission.OTHERS_WRITE,
+    PosixFilePermission.OTHERS_READ,
+    PosixFilePermission.GROUP_EXECUTE,
+    PosixFilePermission.GROUP_WRITE,
+    PosixFilePermission.GROUP_READ,
+    PosixFilePermission.OWNER_EXECUTE,
+    PosixFilePermission.OWNER_WRITE,
+    PosixFilePermission.OWNER_READ
+  };
+
+  private final Squashfs.InodeType type;
+  private final int permissions;
+  private final long mtime;
+  private final long inodeNumber;
+  private final long size;
+  private final SquashfsPrincipal owner;
+  private final SquashfsPrincipal group;
+
+  /** Reads the attributes, the caller has to hold the lock of the parser. */
+  SquashfsFileAttributes(Squashfs.InodeHeader inodeHeader) {
+    this.type = inodeHeader.type();
+    this.permissions = inodeHeader.permissions();
+    this.mtime = inodeHeader.mtime();
+    this.inodeNumber = inodeHeader.inodeNumber();
+    this.size = size(inodeHeader);
+    this.owner = new SquashfsPrincipal(id(inodeHeader, inodeHeader.uid()));
+    this.group = new SquashfsPrincipal(id(inodeHeader, inodeHeader.gid()));
+  }
+
+  private static long id(Squashfs.InodeHeader inodeHeader, int index) {
+    return inodeHeader._root().uidGidEntries().uidGidEntries().get(index).uidGid();
+  }
+
+  private static long size(Squashfs.InodeHeader inodeHeader) {
+    switch (inodeHeader.type()) {
+      case BASIC_DIRECTORY:
+        return ((Squashfs.InodeHeaderBasicDirectory) inodeHeader.header()).fileSize();
+      case EXTENDED_DIRECTORY:
+        return ((Squashfs.InodeHeaderExtendedDirectory) inodeHeader.header()).fileSize();
+      case BASIC_FILE:
+        return ((Squashfs.InodeHeaderBasicFile) inodeHeader.header()).fileSize();
+      case EXTENDED_FILE:
+        return ((Squashfs.InodeHeaderExtendedFile) inodeHeader.header()).fileSize();
+      default:
+        return 0;
+    }
+  }
+
+  @Override
+  public FileTime lastModifiedTime() {
+    return FileTime.from(mtime, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public FileTime lastAccessTime() {
+    // squashfs only stores the modification time
+    return lastModifiedTime();
+  }
+
+  @Override
+  public FileTime creationTime() {
+    return lastModifiedTime();
+  }
+
+  @Override
+  public boolean isRegularFile() {
+    return type == Squashfs.InodeType.BASIC_FILE || type == Squashfs.InodeType.EXTENDED_FILE;
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return type == Squashfs.InodeType.BASIC_DIRECTORY
+        || type == Squashfs.InodeType.EXTENDED_DIRECTORY;
+  }
+
+  @Override
+  public boolean isSymbolicLink() {
+    return type == Squashfs.InodeType.BASIC_SYMLINK || type == Squashfs.InodeType.EXTENDED_SYMLINK;
+  }
+
+  @Override
+  public boolean isOther() {
+    return !isRegularFile() && !isDirectory() && !isSymbolicLink();
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public Object fileKey() {
+    return inodeNumber;
+  }
+
+  @Override
+  public UserPrincipal owner() {
+    return owner;
+  }
+
+  @Override
+  public GroupPrincipal group() {
+    return group;
+  }
+
+  @Override
+  public Set<PosixFilePermission> permissions() {
+    Set<PosixFilePermission> set = EnumSet.noneOf(PosixFilePermission.class);
+    for (int i = 0; i < PERMISSIONS.length; i++) {
+      if ((permissions & (1 << i)) != 0) {
+        set.add(PERMISSIONS[i]);
+      }
+    }
+    return set;
+  }
+
+  /** A user or group, named by its numeric id. */
+  static final class SquashfsPrincipal implements GroupPrincipal {
+    private final long id;
+
+    SquashfsPrincipal(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public String getName() {
+      return String.valueOf(id);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof SquashfsPrincipal && ((SquashfsPrincipal) other).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+  }
+}
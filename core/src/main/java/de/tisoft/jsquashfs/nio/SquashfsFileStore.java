@@ -0,0 +1,66 @@
+package de.tisoft.jsquashfs.nio;
+
+import java.nio.file.FileStore;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/** The single, read only, store of a {@link SquashfsFileSystem}. */
+final class SquashfsFileStore extends FileStore {
+  private final SquashfsFileSystem fileSystem;
+
+  SquashfsFileStore(SquashfsFileSystem fileSystem) {
+    this.fileSystem = fileSystem;
+  }
+
+  @Override
+  public String name() {
+    return fileSystem.image().toString();
+  }
+
+  @Override
+  public String type() {
+    return SquashfsFileSystemProvider.SCHEME;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public long getTotalSpace() {
+    return fileSystem.bytesUsed();
+  }
+
+  @Override
+  public long getUsableSpace() {
+    return 0;
+  }
+
+  @Override
+  public long getUnallocatedSpace() {
+    return 0;
+  }
+
+  @Override
+  public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+    return type == BasicFileAttributeView.class || type == PosixFileAttributeView.class;
+  }
+
+  @Override
+  public boolean supportsFileAttributeView(String name) {
+    return SquashfsFileSystem.VIEWS.contains(name);
+  }
+
+  @Override
+  public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+    return null;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) {
+    throw new UnsupportedOperationException("Unsupported attribute: " + attribute);
+  }
+}
@@ -0,0 +1,196 @@
+package de.tisoft.jsquashfs.nio;
+
+import de.tisoft.jsquashfs.image.SquashfsImage;
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A read only file system on the contents of a squashfs image.
+ *
+ * <p>Nothing is extracted. Paths are resolved through the directory tables when they are accessed,
+ * and file contents are decompressed block by block through the {@link SquashfsImage}, whose block
+ * cache is shared by all threads reading from the file system.
+ */
+public final class SquashfsFileSystem extends FileSystem {
+  static final Set<String> VIEWS = Set.of("basic", "owner", "posix");
+
+  private final SquashfsFileSystemProvider provider;
+  private final Path image;
+  private final SquashfsImage squashfsImage;
+  private final SquashfsPath root;
+  private final SquashfsFileStore fileStore;
+  private volatile boolean open = true;
+
+  /**
+   * @param index the index of the image, see {@link SquashfsImage#open(Path, Path)}, or {@code
+   *     null} to resolve paths through the directory tables
+   */
+  SquashfsFileSystem(SquashfsFileSystemProvider provider, Path image, Path index)
+      throws IOException {
+    this.provider = provider;
+    this.image = image;
+    this.squashfsImage =
+        index == null ? SquashfsImage.open(image) : SquashfsImage.open(image, index);
+    this.root = new SquashfsPath(this, "/");
+    this.fileStore = new SquashfsFileStore(this);
+  }
+
+  /** Returns the image, which gives access to the parsed image and to its block cache. */
+  public SquashfsImage squashfsImage() {
+    return squashfsImage;
+  }
+
+  @Override
+  public SquashfsFileSystemProvider provider() {
+    return provider;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (open) {
+      open = false;
+      provider.removeFileSystem(image, this);
+      squashfsImage.close();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public String getSeparator() {
+    return "/";
+  }
+
+  @Override
+  public Iterable<Path> getRootDirectories() {
+    return List.of(root);
+  }
+
+  @Override
+  public Iterable<FileStore> getFileStores() {
+    return List.of(fileStore);
+  }
+
+  @Override
+  public Set<String> supportedFileAttributeViews() {
+    return VIEWS;
+  }
+
+  @Override
+  public Path getPath(String first, String... more) {
+    StringBuilder path = new StringBuilder(first);
+    for (String name : more) {
+      if (!name.isEmpty()) {
+        path.append(path.length() == 0 ? "" : "/").append(name);
+      }
+    }
+    return new SquashfsPath(this, path.toString());
+  }
+
+  @Override
+  public PathMatcher getPathMatcher(String syntaxAndPattern) {
+    // paths use the same separator as the default file system on unix like systems
+    PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+    return path -> matcher.matches(Paths.get(path.toString()));
+  }
+
+  @Override
+  public UserPrincipalLookupService getUserPrincipalLookupService() {
+    throw new UnsupportedOperationException("Images have no users");
+  }
+
+  @Override
+  public WatchService newWatchService() {
+    throw new UnsupportedOperationException("Images are read only, they can't be watched");
+  }
+
+  Path image() {
+    return image;
+  }
+
+  FileStore fileStore() {
+    return fileStore;
+  }
+
+  long bytesUsed() {
+    return squashfsImage.squashfs().superblock().bytesUsed();
+  }
+
+  SquashfsFileAttributes attributes(SquashfsPath path) throws IOException {
+    synchronized (squashfsImage.squashfs()) {
+      return new SquashfsFileAttributes(inode(path));
+    }
+  }
+
+  SeekableByteChannel newByteChannel(SquashfsPath path) throws IOException {
+    Squashfs.InodeHeader inodeHeader = inode(path);
+    if (!isFile(inodeHeader)) {
+      throw new FileSystemException(path.toString(), null, "Not a regular file");
+    }
+    return squashfsImage.newByteChannel(inodeHeader);
+  }
+
+  /** Returns the names of the entries of a directory, in the order of the image. */
+  List<String> list(SquashfsPath path) throws IOException {
+    synchronized (squashfsImage.squashfs()) {
+      Squashfs.InodeHeader inodeHeader = inode(path);
+      if (!isDirectory(inodeHeader)) {
+        throw new NotDirectoryException(path.toString());
+      }
+      List<String> names = new ArrayList<>();
+      for (Squashfs.DirectoryHeader directoryHeader :
+          Metadata.directory(inodeHeader).directoryHeader()) {
+        if (directoryHeader.directoryEntry() != null) {
+          for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+            names.add(directoryEntry.name());
+          }
+        }
+      }
+      return names;
+    }
+  }
+
+  private Squashfs.InodeHeader inode(SquashfsPath path) throws IOException {
+    if (!open) {
+      throw new ClosedFileSystemException();
+    }
+    return squashfsImage
+        .lookup(path.toAbsolutePath().toString())
+        .orElseThrow(() -> new NoSuchFileException(path.toString()));
+  }
+
+  private static boolean isFile(Squashfs.InodeHeader inodeHeader) {
+    return inodeHeader.type() == Squashfs.InodeType.BASIC_FILE
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_FILE;
+  }
+
+  private static boolean isDirectory(Squashfs.InodeHeader inodeHeader) {
+    return inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY;
+  }
+}
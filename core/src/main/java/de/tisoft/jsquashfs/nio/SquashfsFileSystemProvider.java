@@ -0,0 +1,344 @@
+package de.tisoft.jsquashfs.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.ClosedDirectoryStreamException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Provides read only file systems on squashfs images.
+ *
+ * <p>{@code FileSystems.newFileSystem(Path.of("image.sqfs"))} opens an image, that is only
+ * accessible through the returned file system. Images opened with a URI like {@code
+ * squashfs:file:///image.sqfs} can also be looked up by URI, paths in them have URIs like {@code
+ * squashfs:file:///image.sqfs!/etc/hosts}.
+ *
+ * <p>The environment may name a sidecar index of the image as {@code "index"}, either as a path or
+ * as a string, see {@link de.tisoft.jsquashfs.image.SquashfsImage#open(Path, Path)}.
+ */
+public final class SquashfsFileSystemProvider extends FileSystemProvider {
+  static final String SCHEME = "squashfs";
+  private static final byte[] MAGIC = {'h', 's', 'q', 's'};
+  private static final String SEPARATOR = "!/";
+  private static final String INDEX = "index";
+
+  private final Map<Path, SquashfsFileSystem> fileSystems = new HashMap<>();
+
+  @Override
+  public String getScheme() {
+    return SCHEME;
+  }
+
+  @Override
+  public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+    Path image = image(uri);
+    synchronized (fileSystems) {
+      if (fileSystems.containsKey(image)) {
+        throw new FileSystemAlreadyExistsException(image.toString());
+      }
+      SquashfsFileSystem fileSystem = new SquashfsFileSystem(this, image, index(env));
+      fileSystems.put(image, fileSystem);
+      return fileSystem;
+    }
+  }
+
+  @Override
+  public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+    if (!isSquashfs(path)) {
+      // lets FileSystems.newFileSystem try the other providers
+      throw new UnsupportedOperationException("Not a squashfs image: " + path);
+    }
+    return new SquashfsFileSystem(this, path, index(env));
+  }
+
+  @Override
+  public FileSystem getFileSystem(URI uri) {
+    Path image = image(uri);
+    synchronized (fileSystems) {
+      SquashfsFileSystem fileSystem = fileSystems.get(image);
+      if (fileSystem == null) {
+        throw new FileSystemNotFoundException(uri.toString());
+      }
+      return fileSystem;
+    }
+  }
+
+  @Override
+  public Path getPath(URI uri) {
+    String spec = uri.getSchemeSpecificPart();
+    int separator = spec.indexOf(SEPARATOR);
+    if (separator < 0) {
+      throw new IllegalArgumentException("URI does not contain a path in the image: " + uri);
+    }
+    return getFileSystem(uri).getPath(spec.substring(separator + 1));
+  }
+
+  @Override
+  public SeekableByteChannel newByteChannel(
+      Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+    for (OpenOption option : options) {
+      if (option != StandardOpenOption.READ && option != LinkOption.NOFOLLOW_LINKS) {
+        throw new ReadOnlyFileSystemException();
+      }
+    }
+    return check(path).getFileSystem().newByteChannel(check(path));
+  }
+
+  @Override
+  public DirectoryStream<Path> newDirectoryStream(
+      Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+    List<String> names = check(dir).getFileSystem().list(check(dir));
+    return new DirectoryStream<>() {
+      private boolean open = true;
+      private boolean iterated;
+
+      @Override
+      public Iterator<Path> iterator() {
+        if (!open) {
+          throw new ClosedDirectoryStreamException();
+        }
+        if (iterated) {
+          throw new IllegalStateException("Iterator already obtained");
+        }
+        iterated = true;
+        Iterator<String> iterator = names.iterator();
+        return new Iterator<>() {
+          private Path next;
+
+          @Override
+          public boolean hasNext() {
+            while (next == null && open && iterator.hasNext()) {
+              Path entry = dir.resolve(iterator.next());
+              try {
+                if (filter == null || filter.accept(entry)) {
+                  next = entry;
+                }
+              } catch (IOException e) {
+                throw new DirectoryIteratorException(e);
+              }
+            }
+            return next != null;
+          }
+
+          @Override
+          public Path next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Path result = next;
+            next = null;
+            return result;
+          }
+        };
+      }
+
+      @Override
+      public void close() {
+        open = false;
+      }
+    };
+  }
+
+  @Override
+  public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  @Override
+  public void delete(Path path) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  @Override
+  public void copy(Path source, Path target, CopyOption... options) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  @Override
+  public void move(Path source, Path target, CopyOption... options) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  @Override
+  public boolean isSameFile(Path path, Path path2) throws IOException {
+    if (path.equals(path2)) {
+      return true;
+    }
+    if (!(path2 instanceof SquashfsPath)
+        || ((SquashfsPath) path2).getFileSystem() != check(path).getFileSystem()) {
+      return false;
+    }
+    return readAttributes(path, BasicFileAttributes.class)
+        .fileKey()
+        .equals(readAttributes(path2, BasicFileAttributes.class).fileKey());
+  }
+
+  @Override
+  public boolean isHidden(Path path) {
+    Path name = check(path).getFileName();
+    return name != null && name.toString().startsWith(".");
+  }
+
+  @Override
+  public FileStore getFileStore(Path path) {
+    return check(path).getFileSystem().fileStore();
+  }
+
+  @Override
+  public void checkAccess(Path path, AccessMode... modes) throws IOException {
+    // fails, if the path does not exist
+    check(path).getFileSystem().attributes(check(path));
+    if (Arrays.asList(modes).contains(AccessMode.WRITE)) {
+      throw new AccessDeniedException(path.toString(), null, "Read only file system");
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <V extends FileAttributeView> V getFileAttributeView(
+      Path path, Class<V> type, LinkOption... options) {
+    if (type == BasicFileAttributeView.class) {
+      return (V) new SquashfsFileAttributeView(check(path), "basic");
+    } else if (type == FileOwnerAttributeView.class) {
+      return (V) new SquashfsFileAttributeView(check(path), "owner");
+    } else if (type == PosixFileAttributeView.class) {
+      return (V) new SquashfsFileAttributeView(check(path), "posix");
+    }
+    return null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <A extends BasicFileAttributes> A readAttributes(
+      Path path, Class<A> type, LinkOption... options) throws IOException {
+    if (type != BasicFileAttributes.class && type != PosixFileAttributes.class) {
+      throw new UnsupportedOperationException("Unsupported attributes: " + type);
+    }
+    return (A) check(path).getFileSystem().attributes(check(path));
+  }
+
+  @Override
+  public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+      throws IOException {
+    int colon = attributes.indexOf(':');
+    String view = colon < 0 ? "basic" : attributes.substring(0, colon);
+    if (!SquashfsFileSystem.VIEWS.contains(view)) {
+      throw new UnsupportedOperationException("Unsupported view: " + view);
+    }
+    PosixFileAttributes attrs = readAttributes(path, PosixFileAttributes.class);
+    Map<String, Object> all = new LinkedHashMap<>();
+    if (!view.equals("owner")) {
+      all.put("lastModifiedTime", attrs.lastModifiedTime());
+      all.put("lastAccessTime", attrs.lastAccessTime());
+      all.put("creationTime", attrs.creationTime());
+      all.put("size", attrs.size());
+      all.put("isRegularFile", attrs.isRegularFile());
+      all.put("isDirectory", attrs.isDirectory());
+      all.put("isSymbolicLink", attrs.isSymbolicLink());
+      all.put("isOther", attrs.isOther());
+      all.put("fileKey", attrs.fileKey());
+    }
+    if (!view.equals("basic")) {
+      all.put("owner", attrs.owner());
+    }
+    if (view.equals("posix")) {
+      all.put("group", attrs.group());
+      all.put("permissions", attrs.permissions());
+    }
+    String names = attributes.substring(colon + 1);
+    if (names.equals("*")) {
+      return all;
+    }
+    Map<String, Object> selected = new LinkedHashMap<>();
+    for (String name : names.split(",")) {
+      if (!all.containsKey(name)) {
+        throw new IllegalArgumentException("Unknown attribute: " + name);
+      }
+      selected.put(name, all.get(name));
+    }
+    return selected;
+  }
+
+  @Override
+  public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+    throw new ReadOnlyFileSystemException();
+  }
+
+  void removeFileSystem(Path image, SquashfsFileSystem fileSystem) {
+    synchronized (fileSystems) {
+      fileSystems.remove(image, fileSystem);
+    }
+  }
+
+  /** Returns the real path of the image of a URI like {@code squashfs:file:///image.sqfs!/}. */
+  private Path image(URI uri) {
+    if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+      throw new IllegalArgumentException("URI scheme is not " + SCHEME + ": " + uri);
+    }
+    String spec = uri.getSchemeSpecificPart();
+    int separator = spec.indexOf(SEPARATOR);
+    try {
+      Path image = Paths.get(new URI(separator < 0 ? spec : spec.substring(0, separator)));
+      return image.toAbsolutePath().normalize();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid image URI: " + uri, e);
+    }
+  }
+
+  private static Path index(Map<String, ?> env) {
+    Object index = env == null ? null : env.get(INDEX);
+    return index instanceof String ? Paths.get((String) index) : (Path) index;
+  }
+
+  private static boolean isSquashfs(Path path) throws IOException {
+    if (!Files.isRegularFile(path)) {
+      return false;
+    }
+    byte[] magic = new byte[MAGIC.length];
+    try (InputStream in = Files.newInputStream(path)) {
+      return in.readNBytes(magic, 0, magic.length) == magic.length && Arrays.equals(magic, MAGIC);
+    }
+  }
+
+  private static SquashfsPath check(Path path) {
+    if (!(path instanceof SquashfsPath)) {
+      throw new ProviderMismatchException();
+    }
+    return (SquashfsPath) path;
+  }
+}
@@ -0,0 +1,276 @@
+package de.tisoft.jsquashfs.nio;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+
+/**
+ * A path in a {@link SquashfsFileSystem}. Paths use {@code /} as separator, absolute paths start at
+ * the root directory of the image.
+ */
+final class SquashfsPath implements Path {
+  private static final String SEPARATOR = "/";
+
+  private final SquashfsFileSystem fileSystem;
+  private final String path;
+  private String[] names;
+
+  SquashfsPath(SquashfsFileSystem fileSystem, String path) {
+    this.fileSystem = fileSystem;
+    this.path = normalizeSeparators(path);
+  }
+
+  private static String normalizeSeparators(String path) {
+    StringBuilder normalized = new StringBuilder(path.length());
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c == '\0') {
+        throw new InvalidPathException(path, "Nul character not allowed", i);
+      }
+      // collapse repeated separators
+      if (c != '/'
+          || normalized.length() == 0
+          || normalized.charAt(normalized.length() - 1) != '/') {
+        normalized.append(c);
+      }
+    }
+    if (normalized.length() > 1 && normalized.charAt(normalized.length() - 1) == '/') {
+      normalized.setLength(normalized.length() - 1);
+    }
+    return normalized.toString();
+  }
+
+  private String[] names() {
+    if (names == null) {
+      if (path.equals(SEPARATOR)) {
+        names = new String[0];
+      } else {
+        names = (isAbsolute() ? path.substring(1) : path).split(SEPARATOR);
+      }
+    }
+    return names;
+  }
+
+  private SquashfsPath of(String[] names, int from, int to, boolean absolute) {
+    String joined = String.join(SEPARATOR, Arrays.copyOfRange(names, from, to));
+    return new SquashfsPath(fileSystem, absolute ? SEPARATOR + joined : joined);
+  }
+
+  @Override
+  public SquashfsFileSystem getFileSystem() {
+    return fileSystem;
+  }
+
+  @Override
+  public boolean isAbsolute() {
+    return path.startsWith(SEPARATOR);
+  }
+
+  @Override
+  public Path getRoot() {
+    return isAbsolute() ? new SquashfsPath(fileSystem, SEPARATOR) : null;
+  }
+
+  @Override
+  public Path getFileName() {
+    String[] n = names();
+    if (n.length == 0) {
+      return null;
+    }
+    return n.length == 1 && !isAbsolute() ? this : new SquashfsPath(fileSystem, n[n.length - 1]);
+  }
+
+  @Override
+  public Path getParent() {
+    String[] n = names();
+    if (n.length == 0) {
+      return null;
+    }
+    if (n.length == 1) {
+      return getRoot();
+    }
+    return of(n, 0, n.length - 1, isAbsolute());
+  }
+
+  @Override
+  public int getNameCount() {
+    return names().length;
+  }
+
+  @Override
+  public Path getName(int index) {
+    String[] n = names();
+    if (index < 0 || index >= n.length) {
+      throw new IllegalArgumentException("Invalid index " + index + " for " + path);
+    }
+    return new SquashfsPath(fileSystem, n[index]);
+  }
+
+  @Override
+  public Path subpath(int beginIndex, int endIndex) {
+    String[] n = names();
+    if (beginIndex < 0 || endIndex > n.length || beginIndex >= endIndex) {
+      throw new IllegalArgumentException(
+          "Invalid range " + beginIndex + " to " + endIndex + " for " + path);
+    }
+    return of(n, beginIndex, endIndex, false);
+  }
+
+  @Override
+  public boolean startsWith(Path other) {
+    SquashfsPath o = check(other);
+    if (o.isAbsolute() != isAbsolute()) {
+      return false;
+    }
+    if (o.path.isEmpty()) {
+      return path.isEmpty();
+    }
+    String[] n = names();
+    String[] on = o.names();
+    return on.length <= n.length && Arrays.equals(on, 0, on.length, n, 0, on.length);
+  }
+
+  @Override
+  public boolean endsWith(Path other) {
+    SquashfsPath o = check(other);
+    if (o.isAbsolute()) {
+      return o.path.equals(path);
+    }
+    if (o.path.isEmpty()) {
+      return path.isEmpty();
+    }
+    String[] n = names();
+    String[] on = o.names();
+    return on.length <= n.length
+        && Arrays.equals(on, 0, on.length, n, n.length - on.length, n.length);
+  }
+
+  @Override
+  public Path normalize() {
+    Deque<String> normalized = new ArrayDeque<>();
+    for (String name : names()) {
+      if (name.equals(".") || name.isEmpty()) {
+        continue;
+      }
+      if (name.equals("..")) {
+        if (!normalized.isEmpty() && !normalized.peekLast().equals("..")) {
+          normalized.removeLast();
+          continue;
+        } else if (isAbsolute()) {
+          // the parent of the root is the root
+          continue;
+        }
+      }
+      normalized.addLast(name);
+    }
+    return of(normalized.toArray(new String[0]), 0, normalized.size(), isAbsolute());
+  }
+
+  @Override
+  public Path resolve(Path other) {
+    SquashfsPath o = check(other);
+    if (o.isAbsolute()) {
+      return o;
+    }
+    if (o.path.isEmpty()) {
+      return this;
+    }
+    if (path.isEmpty()) {
+      return o;
+    }
+    return new SquashfsPath(fileSystem, path + SEPARATOR + o.path);
+  }
+
+  @Override
+  public Path relativize(Path other) {
+    SquashfsPath o = check(other);
+    if (o.isAbsolute() != isAbsolute()) {
+      throw new IllegalArgumentException("Can't relativize " + other + " against " + this);
+    }
+    String[] n = path.isEmpty() ? new String[0] : names();
+    String[] on = o.path.isEmpty() ? new String[0] : o.names();
+    int common = 0;
+    while (common < n.length && common < on.length && n[common].equals(on[common])) {
+      common++;
+    }
+    StringBuilder relative = new StringBuilder();
+    for (int i = common; i < n.length; i++) {
+      relative.append(relative.length() == 0 ? "" : SEPARATOR).append("..");
+    }
+    for (int i = common; i < on.length; i++) {
+      relative.append(relative.length() == 0 ? "" : SEPARATOR).append(on[i]);
+    }
+    return new SquashfsPath(fileSystem, relative.toString());
+  }
+
+  @Override
+  public URI toUri() {
+    try {
+      return new URI(
+          SquashfsFileSystemProvider.SCHEME,
+          fileSystem.image().toUri() + "!" + toAbsolutePath(),
+          null);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public SquashfsPath toAbsolutePath() {
+    return isAbsolute() ? this : new SquashfsPath(fileSystem, SEPARATOR + path);
+  }
+
+  @Override
+  public Path toRealPath(LinkOption... options) throws IOException {
+    // there are no symbolic links, so the real path is the normalized path, if it exists
+    SquashfsPath real = (SquashfsPath) toAbsolutePath().normalize();
+    fileSystem.provider().checkAccess(real);
+    return real;
+  }
+
+  @Override
+  public WatchKey register(
+      WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+    throw new UnsupportedOperationException("Images are read only, they can't be watched");
+  }
+
+  @Override
+  public int compareTo(Path other) {
+    return path.compareTo(((SquashfsPath) other).path);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof SquashfsPath
+        && ((SquashfsPath) other).fileSystem == fileSystem
+        && ((SquashfsPath) other).path.equals(path);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(System.identityHashCode(fileSystem), path);
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+
+  private SquashfsPath check(Path other) {
+    if (!(other instanceof SquashfsPath) || ((SquashfsPath) other).fileSystem != fileSystem) {
+      throw new ProviderMismatchException();
+    }
+    return (SquashfsPath) other;
+  }
+}
@@ -5,28 +5,45 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 public class Concat implements CustomDecoder {
-  private final List<Squashfs.Metablock> metablocks;
+  // covers reading the metablocks in the constructor and their assembly in decode
+  private final MetablockEvent event = new MetablockEvent();
+  private final List<byte[]> metablocks;
 
   public Concat(Squashfs.MetablockList metablockList) {
-    this.metablocks = metablockList.metablock();
+    event.begin();
+    this.metablocks =
+        metablockList.metablock().stream()
+            .map(Squashfs.Metablock::data)
+            .collect(Collectors.toList());
   }
 
   public Concat(List<Squashfs.MetablockReference> metablockReferenceList) {
+    event.begin();
+    // the referenced metablocks are read by position, as the stream is still positioned inside
+    // the table, which may be located beyond the int positions the parser can save and restore
     this.metablocks =
         metablockReferenceList.stream()
-            .map(Squashfs.MetablockReference::metablock)
+            .map(reference -> Metadata.metablock(reference._root(), reference.position()))
             .collect(Collectors.toList());
   }
 
   public byte[] decode(byte[] rawData) {
-    byte[] data = new byte[0];
-    for (Squashfs.Metablock metablock : metablocks) {
-      byte[] blockData = metablock.data().data();
-      byte[] combinedDate = new byte[data.length + blockData.length];
-      System.arraycopy(data, 0, combinedDate, 0, data.length);
-      System.arraycopy(blockData, 0, combinedDate, data.length, blockData.length);
-      data = combinedDate;
+    // determine the size first, so the data of each metablock is copied exactly once
+    int size = 0;
+    for (byte[] metablock : metablocks) {
+      try {
+        size = Math.addExact(size, metablock.length);
+      } catch (ArithmeticException e) {
+        throw new IllegalArgumentException("Can't handle tables larger than 2 GiB", e);
+      }
+    }
+    byte[] data = new byte[size];
+    int offset = 0;
+    for (byte[] blockData : metablocks) {
+      System.arraycopy(blockData, 0, data, offset, blockData.length);
+      offset += blockData.length;
     }
+    event.commit(-1, metablocks.size(), size);
     return data;
   }
 }
@@ -1,5 +1,6 @@
 package de.tisoft.jsquashfs.parser;
 
+import de.tisoft.jsquashfs.compression.Decompressor;
 import de.tisoft.jsquashfs.compression.gzip.Gz;
 import de.tisoft.jsquashfs.compression.lz4.Lz4;
 import de.tisoft.jsquashfs.compression.lzma.Lzma;
@@ -7,8 +8,18 @@ import de.tisoft.jsquashfs.compression.lzo.LzoAvailabilityCheck;
 import de.tisoft.jsquashfs.compression.xz.Xz;
 import de.tisoft.jsquashfs.compression.zstd.Zstd;
 import io.kaitai.struct.CustomDecoder;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import jdk.jfr.EventType;
 
 public class Decompress implements CustomDecoder {
+  // the decompressors keep their state thread confined, so they can be shared
+  private static final Decompressor GZ = new Gz();
+  private static final Decompressor LZ4 = new Lz4();
+  private static final Decompressor LZMA = new Lzma();
+  private static final Decompressor XZ = new Xz();
+  private static final Decompressor ZSTD = new Zstd();
+
   private final boolean compressed;
   private final Squashfs.Compressor compressor;
   private final boolean padded;
@@ -30,41 +41,187 @@ public class Decompress implements CustomDecoder {
       // length 0 means, this is a sparse block, containing only 0s
       return new byte[maxSize];
     }
+    boolean timed = isTimed();
+    DecompressEvent event = timed ? EventTypeHolder.begin() : null;
+    long start = timed ? System.nanoTime() : 0;
+    byte[] data = compressed ? decompressor().uncompress(rawData, maxSize, padded) : rawData;
+    if (timed) {
+      record(event, start, rawData.length, data.length);
+    }
+    return data;
+  }
+
+  /**
+   * Decodes {@code length} bytes of {@code rawData} starting at {@code offset} into {@code dest}
+   * starting at {@code destOffset}. The destination must have room for {@code maxSize} bytes.
+   *
+   * @return the number of decoded bytes
+   */
+  public int decode(byte[] rawData, int offset, int length, byte[] dest, int destOffset) {
+    if (length == 0) {
+      // length 0 means, this is a sparse block, containing only 0s
+      Arrays.fill(dest, destOffset, destOffset + maxSize, (byte) 0);
+      return maxSize;
+    }
+    boolean timed = isTimed();
+    DecompressEvent event = timed ? EventTypeHolder.begin() : null;
+    long start = timed ? System.nanoTime() : 0;
+    int size;
     if (compressed) {
-      switch (compressor) {
-        case ZLIB:
-          {
-            return new Gz().uncompress(rawData, maxSize, padded);
-          }
-        case LZ4:
-          {
-            return new Lz4().uncompress(rawData, maxSize, padded);
-          }
-        case LZMA:
-          {
-            return new Lzma().uncompress(rawData, maxSize, padded);
-          }
-        case LZO:
-          {
-            if (LzoAvailabilityCheck.isLzoAvailable()) {
-              return LzoAvailabilityCheck.getLzoDecompressor().uncompress(rawData, maxSize, padded);
-            } else {
-              throw new IllegalArgumentException("Missing LZO dependency");
-            }
-          }
-        case XZ:
-          {
-            return new Xz().uncompress(rawData, maxSize, padded);
-          }
-        case ZSTD:
-          {
-            return new Zstd().uncompress(rawData, maxSize, padded);
-          }
-        default:
-          throw new IllegalArgumentException("Unsupported compression: " + compressor);
-      }
+      size = decompressor().uncompress(rawData, offset, length, dest, destOffset, maxSize);
+    } else {
+      System.arraycopy(rawData, offset, dest, destOffset, length);
+      size = length;
+    }
+    if (timed) {
+      record(event, start, length, size);
+    }
+    return size;
+  }
+
+  /**
+   * Decodes the remaining bytes of {@code rawData}, which may be a view of a mapped image.
+   *
+   * @see #decode(byte[])
+   */
+  public byte[] decode(ByteBuffer rawData) {
+    if (!rawData.hasRemaining()) {
+      // length 0 means, this is a sparse block, containing only 0s
+      return new byte[maxSize];
+    }
+    boolean timed = isTimed();
+    DecompressEvent event = timed ? EventTypeHolder.begin() : null;
+    long start = timed ? System.nanoTime() : 0;
+    int compressedSize = rawData.remaining();
+    byte[] data;
+    if (compressed) {
+      byte[] buffer = new byte[maxSize];
+      int length = decompressor().uncompress(rawData, ByteBuffer.wrap(buffer));
+      data = length == maxSize || padded ? buffer : Arrays.copyOf(buffer, length);
+    } else {
+      data = new byte[compressedSize];
+      rawData.get(data);
+    }
+    if (timed) {
+      record(event, start, compressedSize, data.length);
+    }
+    return data;
+  }
+
+  /**
+   * Decodes the remaining bytes of {@code rawData}, which may be a view of a mapped image, into
+   * {@code dest} starting at {@code destOffset}. The destination must have room for {@code maxSize}
+   * bytes.
+   *
+   * @return the number of decoded bytes
+   */
+  public int decode(ByteBuffer rawData, byte[] dest, int destOffset) {
+    int length = rawData.remaining();
+    if (length == 0) {
+      // length 0 means, this is a sparse block, containing only 0s
+      Arrays.fill(dest, destOffset, destOffset + maxSize, (byte) 0);
+      return maxSize;
+    }
+    boolean timed = isTimed();
+    DecompressEvent event = timed ? EventTypeHolder.begin() : null;
+    long start = timed ? System.nanoTime() : 0;
+    int size;
+    if (compressed) {
+      size = decompressor().uncompress(rawData, ByteBuffer.wrap(dest, destOffset, maxSize));
     } else {
-      return rawData;
+      rawData.get(dest, destOffset, length);
+      size = length;
+    }
+    if (timed) {
+      record(event, start, length, size);
+    }
+    return size;
+  }
+
+  /**
+   * Returns whether the decoding of a block is timed. Neither the {@link DecompressStatistics} nor
+   * a JFR recording may be interested in it, so the hot path does not pay for them.
+   */
+  private static boolean isTimed() {
+    return DecompressStatistics.isEnabled() || EventTypeHolder.isEnabled();
+  }
+
+  /**
+   * Counts a decoded block in the {@link DecompressStatistics} and commits its JFR event, if there
+   * is one.
+   */
+  private void record(DecompressEvent event, long start, int compressedSize, int size) {
+    String name = compressed ? compressor.name() : DecompressStatistics.UNCOMPRESSED;
+    if (DecompressStatistics.isEnabled()) {
+      DecompressStatistics.record(name, compressedSize, size, System.nanoTime() - start);
+    }
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.compressor = name;
+      event.compressedSize = compressedSize;
+      event.size = size;
+      event.commit();
+    }
+  }
+
+  private Decompressor decompressor() {
+    switch (compressor) {
+      case ZLIB:
+        return GZ;
+      case LZ4:
+        return LZ4;
+      case LZMA:
+        return LZMA;
+      case LZO:
+        if (LzoAvailabilityCheck.isLzoAvailable()) {
+          return LzoHolder.LZO;
+        } else {
+          throw new IllegalArgumentException("Missing LZO dependency");
+        }
+      case XZ:
+        return XZ;
+      case ZSTD:
+        return ZSTD;
+      default:
+        throw new IllegalArgumentException("Unsupported compression: " + compressor);
+    }
+  }
+
+  /** Loads the LZO decompressor only when it is needed, as the dependency is optional. */
+  private static final class LzoHolder {
+    private static final Decompressor LZO = LzoAvailabilityCheck.getLzoDecompressor();
+  }
+
+  /**
+   * Looks up the JFR event type on first use. The jdk.jfr module is optional, without it no events
+   * are created.
+   */
+  private static final class EventTypeHolder {
+    private static final EventType EVENT_TYPE = eventType();
+
+    private static EventType eventType() {
+      try {
+        return EventType.getEventType(DecompressEvent.class);
+      } catch (LinkageError e) {
+        return null;
+      }
+    }
+
+    static boolean isEnabled() {
+      return EVENT_TYPE != null && EVENT_TYPE.isEnabled();
+    }
+
+    /** Returns a started event, or {@code null} if no JFR recording is interested in it. */
+    static DecompressEvent begin() {
+      if (!isEnabled()) {
+        return null;
+      }
+      DecompressEvent event = new DecompressEvent();
+      event.begin();
+      return event;
     }
   }
 }
@@ -0,0 +1,25 @@
+package de.tisoft.jsquashfs.parser;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A JFR event for the decompression of a data block or a metablock. */
+@Name("de.tisoft.jsquashfs.Decompress")
+@Label("Decompress")
+@Description("Decompression of a data block or a metablock")
+@Category("jsquashfs")
+public final class DecompressEvent extends jdk.jfr.Event {
+  @Label("Compressor")
+  String compressor;
+
+  @Label("Compressed Size")
+  @DataAmount
+  int compressedSize;
+
+  @Label("Size")
+  @DataAmount
+  int size;
+}
@@ -0,0 +1,33 @@
+package de.tisoft.jsquashfs.parser;
+
+import io.kaitai.struct.CustomDecoder;
+
+/** Decompresses a metablock through the {@link MetablockCache} of the image. */
+public class DecompressMetablock implements CustomDecoder {
+  static final int METABLOCK_SIZE = 8192;
+
+  private final Squashfs root;
+  private final long offset;
+  private final boolean compressed;
+
+  public DecompressMetablock(Squashfs root, long offset, boolean compressed) {
+    this.root = root;
+    this.offset = offset;
+    this.compressed = compressed;
+  }
+
+  public byte[] decode(byte[] rawData) {
+    return MetablockCache.of(root)
+        .get(
+            offset,
+            o -> {
+              MetablockEvent event = new MetablockEvent();
+              event.begin();
+              byte[] data =
+                  new Decompress(compressed, root.superblock().compressor(), METABLOCK_SIZE, false)
+                      .decode(rawData);
+              event.commit(offset, 1, data.length);
+              return data;
+            });
+  }
+}
@@ -0,0 +1,110 @@
+package de.tisoft.jsquashfs.parser;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the blocks decoded by {@link Decompress}, per compressor, named like {@link
+ * Squashfs.Compressor}. Blocks that are stored uncompressed are counted as {@code "uncompressed"}.
+ *
+ * <p>The counters are global and only ever increase, so the statistics of a single run are the
+ * difference of a {@link #snapshot()} taken before and after it. Counting is off by default, so
+ * decoding does not pay for it, and is switched on with {@link #setEnabled(boolean)}.
+ */
+public final class DecompressStatistics {
+  static final String UNCOMPRESSED = "uncompressed";
+
+  private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+  private static volatile boolean enabled;
+
+  private DecompressStatistics() {}
+
+  /** The totals of one compressor. */
+  public static final class Codec {
+    private final long blocks;
+    private final long compressedBytes;
+    private final long bytes;
+    private final long nanos;
+
+    private Codec(long blocks, long compressedBytes, long bytes, long nanos) {
+      this.blocks = blocks;
+      this.compressedBytes = compressedBytes;
+      this.bytes = bytes;
+      this.nanos = nanos;
+    }
+
+    public long blocks() {
+      return blocks;
+    }
+
+    /** The number of bytes read from the image. */
+    public long compressedBytes() {
+      return compressedBytes;
+    }
+
+    /** The number of decoded bytes. */
+    public long bytes() {
+      return bytes;
+    }
+
+    /** The time spent decoding, summed over all threads. */
+    public long nanos() {
+      return nanos;
+    }
+
+    /** Returns the totals since an earlier snapshot of the same compressor. */
+    public Codec since(Codec earlier) {
+      if (earlier == null) {
+        return this;
+      }
+      return new Codec(
+          blocks - earlier.blocks,
+          compressedBytes - earlier.compressedBytes,
+          bytes - earlier.bytes,
+          nanos - earlier.nanos);
+    }
+  }
+
+  private static final class Counter {
+    private final LongAdder blocks = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+  }
+
+  /** Switches counting of decoded blocks on or off. */
+  public static void setEnabled(boolean enabled) {
+    DecompressStatistics.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns the current totals, sorted by the name of the compressor. */
+  public static Map<String, Codec> snapshot() {
+    Map<String, Codec> snapshot = new TreeMap<>();
+    COUNTERS.forEach(
+        (name, counter) ->
+            snapshot.put(
+                name,
+                new Codec(
+                    counter.blocks.sum(),
+                    counter.compressedBytes.sum(),
+                    counter.bytes.sum(),
+                    counter.nanos.sum())));
+    return Collections.unmodifiableMap(snapshot);
+  }
+
+  static void record(String compressor, int compressedSize, int size, long nanos) {
+    Counter counter = COUNTERS.computeIfAbsent(compressor, c -> new Counter());
+    counter.blocks.increment();
+    counter.compressedBytes.add(compressedSize);
+    counter.bytes.add(size);
+    counter.nanos.add(nanos);
+  }
+}
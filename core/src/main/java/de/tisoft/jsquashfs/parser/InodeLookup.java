@@ -0,0 +1,146 @@
+package de.tisoft.jsquashfs.parser;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Resolves inode numbers to inodes.
+ *
+ * <p>Images with an NFS export table map every inode number to its inode reference there, so a
+ * lookup only reads the one metablock that holds the reference, through the {@link MetablockCache}.
+ * For images without an export table, the references of all inodes are collected by walking the
+ * directory tree once, on the first lookup.
+ *
+ * <p>Instances are kept per image in a weak map. They only keep a weak reference to their image, so
+ * the map does not keep the image alive.
+ *
+ * <p>Like the parser, instances are not thread safe.
+ */
+public final class InodeLookup {
+  private static final Map<Squashfs, InodeLookup> LOOKUPS =
+      Collections.synchronizedMap(new WeakHashMap<>());
+  private static final int REFERENCE_SIZE = 8;
+  private static final int REFERENCES_PER_METABLOCK =
+      DecompressMetablock.METABLOCK_SIZE / REFERENCE_SIZE;
+  private static final long UNKNOWN = -1;
+
+  private final WeakReference<Squashfs> image;
+  private final boolean exportTable;
+  private long[] references;
+
+  InodeLookup(Squashfs root, boolean exportTable) {
+    this.image = new WeakReference<>(root);
+    this.exportTable = exportTable;
+  }
+
+  /** Returns the inode lookup of the given image. */
+  public static InodeLookup of(Squashfs squashfs) {
+    return LOOKUPS.computeIfAbsent(
+        squashfs, s -> new InodeLookup(s, s.superblock().flags().nfsExportTable()));
+  }
+
+  /** Drops the lookup of the given image, with the references collected by walking its tree. */
+  static void release(Squashfs squashfs) {
+    LOOKUPS.remove(squashfs);
+  }
+
+  /**
+   * Returns the inode with the given number.
+   *
+   * @throws IllegalArgumentException if the image has no inode with that number
+   */
+  public Squashfs.InodeHeader inode(long inodeNumber) {
+    return Metadata.inode(root(), reference(inodeNumber));
+  }
+
+  /**
+   * Returns the inode reference of the inode with the given number, as used by {@link
+   * Metadata#inode(Squashfs, long)}.
+   *
+   * @throws IllegalArgumentException if the image has no inode with that number
+   */
+  public long reference(long inodeNumber) {
+    Squashfs root = root();
+    long count = root.superblock().inodeCount();
+    if (inodeNumber < 1 || inodeNumber > count) {
+      throw new IllegalArgumentException(
+          "Inode number " + inodeNumber + " is outside of 1.." + count);
+    }
+    long index = inodeNumber - 1;
+    if (!exportTable) {
+      long reference = references(root)[(int) index];
+      if (reference == UNKNOWN) {
+        throw new IllegalArgumentException("No inode with number " + inodeNumber);
+      }
+      return reference;
+    }
+    long position =
+        MappedKaitaiStream.read(
+                root._io(),
+                root.superblock().exportTableStart()
+                    + index / REFERENCES_PER_METABLOCK * REFERENCE_SIZE,
+                REFERENCE_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .getLong();
+    byte[] metablock = Metadata.metablock(root, position);
+    int offset = (int) (index % REFERENCES_PER_METABLOCK) * REFERENCE_SIZE;
+    if (offset + REFERENCE_SIZE > metablock.length) {
+      throw new IllegalArgumentException(
+          "Export table metablock at " + position + " has no entry for inode " + inodeNumber);
+    }
+    return ByteBuffer.wrap(metablock, offset, REFERENCE_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .getLong();
+  }
+
+  /** Returns the references of all inodes, indexed by their number minus one. */
+  /** Returns the image of the lookup, which is reachable as long as the lookup is in use. */
+  private Squashfs root() {
+    Squashfs squashfs = image.get();
+    if (squashfs == null) {
+      throw new IllegalStateException("The image of the lookup is gone");
+    }
+    return squashfs;
+  }
+
+  private long[] references(Squashfs root) {
+    if (references == null) {
+      long[] collected = new long[Math.toIntExact(root.superblock().inodeCount())];
+      Arrays.fill(collected, UNKNOWN);
+      long rootReference = root.superblock().rootInodeRef().raw();
+      collect(root, Metadata.inode(root, rootReference), rootReference, collected);
+      references = collected;
+    }
+    return references;
+  }
+
+  private static void collect(
+      Squashfs root, Squashfs.InodeHeader inodeHeader, long reference, long[] collected) {
+    long number = inodeHeader.inodeNumber();
+    if (number >= 1 && number <= collected.length) {
+      collected[(int) (number - 1)] = reference;
+    }
+    if (inodeHeader.type() != Squashfs.InodeType.BASIC_DIRECTORY
+        && inodeHeader.type() != Squashfs.InodeType.EXTENDED_DIRECTORY) {
+      return;
+    }
+    for (Squashfs.DirectoryHeader directoryHeader :
+        Metadata.directory(inodeHeader).directoryHeader()) {
+      if (directoryHeader.directoryEntry() == null) {
+        continue;
+      }
+      for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+        collect(
+            root,
+            Metadata.inode(root, directoryHeader.start(), directoryEntry.offset()),
+            (directoryHeader.start() << 16) | directoryEntry.offset(),
+            collected);
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package de.tisoft.jsquashfs.parser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of decoded blocks, keyed by their position in the image. It is the base of
+ * the {@link MetablockCache} and of the cache of data blocks of {@link
+ * de.tisoft.jsquashfs.image.SquashfsImage}.
+ *
+ * <p>Blocks are loaded outside of the lock, so other threads are not blocked while a block is
+ * decompressed. Two threads missing the same block may both load it.
+ *
+ * @param <V> the type of the cached blocks
+ */
+public class LruCache<V> {
+  /** Loads a block, that is not cached. */
+  @FunctionalInterface
+  public interface Loader<V, E extends Exception> {
+    V load(long position) throws E;
+  }
+
+  private final LinkedHashMap<Long, V> entries;
+  private int capacity;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param capacity the maximum number of cached blocks
+   */
+  protected LruCache(int capacity) {
+    this.capacity = checkCapacity(capacity);
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+            return size() > LruCache.this.capacity;
+          }
+        };
+  }
+
+  /** Returns the block at the given position, loading it with the loader if it is not cached. */
+  public <E extends Exception> V get(long position, Loader<V, E> loader) throws E {
+    synchronized (this) {
+      V value = entries.get(position);
+      if (value != null) {
+        hits++;
+        return value;
+      }
+      misses++;
+    }
+    V value = loader.load(position);
+    synchronized (this) {
+      entries.put(position, value);
+    }
+    return value;
+  }
+
+  /** Sets the maximum number of cached blocks, evicting the least recently used ones. */
+  public final synchronized void setCapacity(int capacity) {
+    this.capacity = checkCapacity(capacity);
+    entries.keySet().removeIf(position -> entries.size() > this.capacity);
+  }
+
+  public synchronized int capacity() {
+    return capacity;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  /** Removes all cached blocks. The hit and miss counters are kept. */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private static int checkCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    return capacity;
+  }
+}
@@ -0,0 +1,306 @@
+package de.tisoft.jsquashfs.parser;
+
+import io.kaitai.struct.KaitaiStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A stream on a memory mapped file of any size.
+ *
+ * <p>{@link io.kaitai.struct.ByteBufferKaitaiStream} maps the file into a single buffer, which
+ * limits it to 2 GiB. This stream maps the file in segments, addressed by long offsets. Each
+ * segment overlaps the next one by more than the largest squashfs block, so every data block and
+ * metablock can be returned as a zero-copy view of the mapping with {@link #slice(long, int)}.
+ *
+ * <p>{@link #pos()} can only report positions below 2 GiB. The parser seeks with long offsets, and
+ * only asks for the position to restore it after reading an instance, which starts out at the
+ * superblock. Metablocks and data blocks should be read with {@link #read(KaitaiStream, long,
+ * int)}, which does not move the position and can be used from any thread.
+ *
+ * <p>Java has no supported way to unmap a file, and unmapping while a view is still in use would
+ * crash the JVM. {@link #close()} therefore only drops the references to the mappings. They are
+ * unmapped by the garbage collector, once no view returned by {@link #slice(long, int)} is
+ * reachable anymore. Until then the file stays mapped, which on Windows also keeps it from being
+ * deleted or replaced.
+ */
+public class MappedKaitaiStream extends KaitaiStream {
+  static final long SEGMENT_SIZE = 1L << 30;
+  // larger than a data block (1 MiB) and a metablock with its header
+  static final int OVERLAP = 2 << 20;
+
+  private final ByteBuffer[] segments;
+  private final long segmentSize;
+  private final long size;
+  private long pos;
+  // the index of the bytes returned by the last call of next() in their buffer
+  private int index;
+
+  public MappedKaitaiStream(Path path) throws IOException {
+    this(path, SEGMENT_SIZE, OVERLAP);
+  }
+
+  MappedKaitaiStream(Path path, long segmentSize, int overlap) throws IOException {
+    // the mappings stay valid after the channel is closed
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      this.size = channel.size();
+      this.segmentSize = segmentSize;
+      this.segments = new ByteBuffer[(int) Math.max(1, (size + segmentSize - 1) / segmentSize)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = i * segmentSize;
+        long length = Math.min(segmentSize + overlap, size - start);
+        segments[i] =
+            channel
+                .map(FileChannel.MapMode.READ_ONLY, start, length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+  }
+
+  /**
+   * Returns {@code length} bytes of the stream at {@code offset}, without moving the position of
+   * the stream. Mapped streams return a read only view of the mapping, other streams are read into
+   * a new buffer.
+   */
+  public static ByteBuffer read(KaitaiStream io, long offset, int length) {
+    if (io instanceof MappedKaitaiStream) {
+      return ((MappedKaitaiStream) io).slice(offset, length);
+    }
+    long pos = io.pos();
+    io.seek(offset);
+    byte[] data = io.readBytes(length);
+    io.seek(pos);
+    return ByteBuffer.wrap(data);
+  }
+
+  /**
+   * Returns a read only view of {@code length} bytes at {@code offset}. The position of the stream
+   * is not changed, so this method is thread safe. Ranges that are not covered by a single segment
+   * are copied.
+   */
+  public ByteBuffer slice(long offset, int length) {
+    checkRange(offset, length);
+    int segment = segment(offset);
+    int index = (int) (offset - segment * segmentSize);
+    ByteBuffer buffer = segment(segment);
+    if (index + length <= buffer.limit()) {
+      return buffer.duplicate().position(index).limit(index + length).slice();
+    }
+    return ByteBuffer.wrap(copy(offset, length)).asReadOnlyBuffer();
+  }
+
+  /**
+   * Drops the references to the mappings, later reads fail with an {@link IllegalStateException}.
+   * The mappings are not released right away, see above.
+   */
+  @Override
+  public void close() {
+    Arrays.fill(segments, null);
+  }
+
+  @Override
+  public boolean isEof() {
+    return pos >= size && bitsLeft == 0;
+  }
+
+  @Override
+  public void seek(int newPos) {
+    seek((long) newPos);
+  }
+
+  @Override
+  public void seek(long newPos) {
+    if (newPos < 0 || newPos > size) {
+      throw new IllegalArgumentException("Position " + newPos + " is outside of the stream");
+    }
+    pos = newPos;
+  }
+
+  @Override
+  public int pos() {
+    return Math.toIntExact(pos);
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public byte readS1() {
+    return next(1).get(index);
+  }
+
+  @Override
+  public short readS2be() {
+    return Short.reverseBytes(readS2le());
+  }
+
+  @Override
+  public int readS4be() {
+    return Integer.reverseBytes(readS4le());
+  }
+
+  @Override
+  public long readS8be() {
+    return Long.reverseBytes(readS8le());
+  }
+
+  @Override
+  public short readS2le() {
+    return next(2).getShort(index);
+  }
+
+  @Override
+  public int readS4le() {
+    return next(4).getInt(index);
+  }
+
+  @Override
+  public long readS8le() {
+    return next(8).getLong(index);
+  }
+
+  @Override
+  public int readU1() {
+    return readS1() & 0xFF;
+  }
+
+  @Override
+  public int readU2be() {
+    return readS2be() & 0xFFFF;
+  }
+
+  @Override
+  public long readU4be() {
+    return readS4be() & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public int readU2le() {
+    return readS2le() & 0xFFFF;
+  }
+
+  @Override
+  public long readU4le() {
+    return readS4le() & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public float readF4be() {
+    return Float.intBitsToFloat(readS4be());
+  }
+
+  @Override
+  public double readF8be() {
+    return Double.longBitsToDouble(readS8be());
+  }
+
+  @Override
+  public float readF4le() {
+    return Float.intBitsToFloat(readS4le());
+  }
+
+  @Override
+  public double readF8le() {
+    return Double.longBitsToDouble(readS8le());
+  }
+
+  @Override
+  public byte[] readBytes(long n) {
+    int length = toByteArrayLength(n);
+    checkRange(pos, length);
+    byte[] data = copy(pos, length);
+    pos += length;
+    return data;
+  }
+
+  @Override
+  public byte[] readBytesFull() {
+    return readBytes(size - pos);
+  }
+
+  @Override
+  public byte[] readBytesTerm(
+      byte term, boolean includeTerm, boolean consumeTerm, boolean eosError) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    while (true) {
+      if (pos >= size) {
+        if (eosError) {
+          throw new IllegalStateException(
+              "End of stream reached, but no terminator " + term + " found");
+        }
+        return buffer.toByteArray();
+      }
+      byte c = readS1();
+      if (c == term) {
+        if (includeTerm) {
+          buffer.write(c);
+        }
+        if (!consumeTerm) {
+          pos--;
+        }
+        return buffer.toByteArray();
+      }
+      buffer.write(c);
+    }
+  }
+
+  /**
+   * Returns a buffer, that holds {@code length} bytes at the current position at {@link #index},
+   * and advances the position. The bytes have to be read with absolute gets, the position of the
+   * segments is never changed, as they are duplicated by {@link #slice(long, int)} from any thread.
+   */
+  private ByteBuffer next(int length) {
+    checkRange(pos, length);
+    int segment = segment(pos);
+    int start = (int) (pos - segment * segmentSize);
+    ByteBuffer buffer = segment(segment);
+    pos += length;
+    if (start + length <= buffer.limit()) {
+      index = start;
+      return buffer;
+    }
+    index = 0;
+    return ByteBuffer.wrap(copy(pos - length, length)).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private byte[] copy(long offset, int length) {
+    byte[] data = new byte[length];
+    int copied = 0;
+    while (copied < length) {
+      long position = offset + copied;
+      int segment = segment(position);
+      int index = (int) (position - segment * segmentSize);
+      ByteBuffer buffer = segment(segment);
+      int chunk = (int) Math.min(length - copied, buffer.limit() - (long) index);
+      buffer.duplicate().position(index).get(data, copied, chunk);
+      copied += chunk;
+    }
+    return data;
+  }
+
+  private int segment(long offset) {
+    return (int) Math.min(offset / segmentSize, segments.length - 1L);
+  }
+
+  private ByteBuffer segment(int segment) {
+    ByteBuffer buffer = segments[segment];
+    if (buffer == null) {
+      throw new IllegalStateException("Stream is closed");
+    }
+    return buffer;
+  }
+
+  private void checkRange(long offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > size) {
+      throw new BufferUnderflowException();
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package de.tisoft.jsquashfs.parser;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A bounded LRU cache of decompressed metablocks, keyed by the position of the metablock in the
+ * image.
+ *
+ * <p>The inode table, the directory table, the id table and the fragment table all read their
+ * metablocks through the same cache of an image, so each metablock is only decompressed once as
+ * long as it is not evicted. The returned arrays are shared and must not be modified.
+ */
+public final class MetablockCache extends LruCache<byte[]> {
+  /** Default number of cached metablocks, 8 MiB of decompressed metadata. */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static final Map<Squashfs, MetablockCache> CACHES =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  MetablockCache(int capacity) {
+    super(capacity);
+  }
+
+  /** Returns the metablock cache of the given image. */
+  public static MetablockCache of(Squashfs squashfs) {
+    return CACHES.computeIfAbsent(squashfs, s -> new MetablockCache(DEFAULT_CAPACITY));
+  }
+
+  /** Drops the cache of the given image with all its metablocks. */
+  static void release(Squashfs squashfs) {
+    MetablockCache cache = CACHES.remove(squashfs);
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+}
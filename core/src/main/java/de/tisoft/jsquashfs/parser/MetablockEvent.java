@@ -0,0 +1,38 @@
+package de.tisoft.jsquashfs.parser;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event for reading metadata, either a single metablock or a table concatenated from its
+ * metablocks.
+ */
+@Name("de.tisoft.jsquashfs.Metablock")
+@Label("Metablock")
+@Description("Reading of a metablock or the assembly of a table from its metablocks")
+@Category("jsquashfs")
+public final class MetablockEvent extends jdk.jfr.Event {
+  @Label("Position")
+  @Description("The position of the metablock in the image, -1 for a table")
+  long position;
+
+  @Label("Metablocks")
+  int metablocks;
+
+  @Label("Size")
+  @DataAmount
+  int size;
+
+  void commit(long position, int metablocks, int size) {
+    end();
+    if (shouldCommit()) {
+      this.position = position;
+      this.metablocks = metablocks;
+      this.size = size;
+      commit();
+    }
+  }
+}
@@ -0,0 +1,380 @@
+package de.tisoft.jsquashfs.parser;
+
+import io.kaitai.struct.ByteBufferKaitaiStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads inodes and directories straight from the metablocks that contain them.
+ *
+ * <p>The {@code inode_table} and {@code directory_table} instances of the parser parse all
+ * metablocks up to the end of their table. This class only reads and decompresses the metablocks
+ * covering the requested entry, so the cost of a lookup does not depend on the size of the image.
+ */
+public final class Metadata {
+  private static final int METABLOCK_HEADER_SIZE = 2;
+  // large enough for all inodes without block list or directory index
+  private static final int INODE_SIZE_GUESS = 64;
+  // the size of a directory listing includes the implicit "." and ".." entries
+  private static final int DIRECTORY_SIZE_OFFSET = 3;
+  // sizes of the entries of the lookup tables, that follow the directory table
+  private static final int FRAGMENT_ENTRY_SIZE = 16;
+  private static final int EXPORT_ENTRY_SIZE = 8;
+  private static final int ID_ENTRY_SIZE = 4;
+  private static final long ABSENT = 0xFFFF_FFFF_FFFF_FFFFL;
+  private static final long NO_FRAGMENT = 0xFFFF_FFFFL;
+
+  private Metadata() {}
+
+  /** Returns the inode for an inode reference, like the root inode reference of the superblock. */
+  public static Squashfs.InodeHeader inode(Squashfs root, long inodeReference) {
+    return inode(root, (inodeReference >>> 16) & 0xFFFFFFFFL, (int) (inodeReference & 0xFFFF));
+  }
+
+  /**
+   * Returns the inode in the metablock starting at {@code block}, relative to the inode table, at
+   * {@code offset} in the decompressed metablock. This is what a directory header ({@code start})
+   * and a directory entry ({@code offset}) point to.
+   */
+  public static Squashfs.InodeHeader inode(Squashfs root, long block, int offset) {
+    long start = root.superblock().inodeTableStart() + block;
+    long end = root.superblock().directoryTableStart();
+    int length = INODE_SIZE_GUESS;
+    while (true) {
+      ByteBuffer data = read(root, start, end, offset, length);
+      int available = data.remaining();
+      try {
+        return new Squashfs.InodeHeader(new ByteBufferKaitaiStream(data), null, root);
+      } catch (BufferUnderflowException e) {
+        if (available < length) {
+          throw new IllegalArgumentException(
+              "Inode at " + block + ":" + offset + " exceeds the inode table", e);
+        }
+        // the inode spans more metablocks, typically a file with a long block list
+        length = available + DecompressMetablock.METABLOCK_SIZE;
+      }
+    }
+  }
+
+  /** Returns the directory listing of a directory inode. */
+  public static Squashfs.Directory directory(Squashfs.InodeHeader inodeHeader) {
+    switch (inodeHeader.type()) {
+      case BASIC_DIRECTORY:
+        {
+          Squashfs.InodeHeaderBasicDirectory directory =
+              (Squashfs.InodeHeaderBasicDirectory) inodeHeader.header();
+          return directory(
+              inodeHeader._root(),
+              directory.dirBlockStart(),
+              directory.blockOffset(),
+              directory.fileSize());
+        }
+      case EXTENDED_DIRECTORY:
+        {
+          Squashfs.InodeHeaderExtendedDirectory directory =
+              (Squashfs.InodeHeaderExtendedDirectory) inodeHeader.header();
+          return directory(
+              inodeHeader._root(),
+              directory.dirBlockStart(),
+              directory.blockOffset(),
+              directory.fileSize());
+        }
+      default:
+        throw new IllegalArgumentException("Not a directory: " + inodeHeader.type());
+    }
+  }
+
+  /**
+   * Returns the directory listing in the metablock starting at {@code block}, relative to the
+   * directory table, at {@code offset} in the decompressed metablock.
+   */
+  public static Squashfs.Directory directory(Squashfs root, long block, int offset, long fileSize) {
+    return listing(root, block, offset, (int) (fileSize - DIRECTORY_SIZE_OFFSET));
+  }
+
+  /**
+   * Looks up a name in a directory. For extended directories the directory index is binary
+   * searched, so only the part of the listing that can contain the name is read.
+   *
+   * @return the matching directory entry or {@code null}, if there is no entry with that name
+   */
+  public static Squashfs.DirectoryEntry lookup(Squashfs.InodeHeader inodeHeader, String name) {
+    Squashfs.Directory directory;
+    if (inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
+      Squashfs.InodeHeaderExtendedDirectory extended =
+          (Squashfs.InodeHeaderExtendedDirectory) inodeHeader.header();
+      List<Squashfs.DirectoryIndex> index = extended.index();
+      // find the last index entry, whose first name is not greater than the name
+      int low = 0;
+      int high = index.size() - 1;
+      int found = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (index.get(mid).name().compareTo(name) <= 0) {
+          found = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      long listingStart = found < 0 ? 0 : index.get(found).index();
+      long listingEnd =
+          found + 1 < index.size()
+              ? index.get(found + 1).index()
+              : extended.fileSize() - DIRECTORY_SIZE_OFFSET;
+      // all metablocks but the last are full, so the offset follows from the listing position
+      directory =
+          listing(
+              inodeHeader._root(),
+              found < 0 ? extended.dirBlockStart() : index.get(found).start(),
+              (int) ((extended.blockOffset() + listingStart) % DecompressMetablock.METABLOCK_SIZE),
+              (int) (listingEnd - listingStart));
+    } else {
+      directory = directory(inodeHeader);
+    }
+    for (Squashfs.DirectoryHeader directoryHeader : directory.directoryHeader()) {
+      if (directoryHeader.directoryEntry() == null) {
+        continue;
+      }
+      for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+        int compare = directoryEntry.name().compareTo(name);
+        if (compare == 0) {
+          return directoryEntry;
+        } else if (compare > 0) {
+          // entries are sorted by name
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Squashfs.Directory listing(Squashfs root, long block, int offset, int length) {
+    if (length <= 0) {
+      return new Squashfs.Directory(new ByteBufferKaitaiStream(new byte[0]), null, root);
+    }
+    long start = root.superblock().directoryTableStart() + block;
+    long end = root.superblock().fragmentTableStart();
+    ByteBuffer data = read(root, start, end, offset, length);
+    if (data.remaining() < length) {
+      throw new IllegalArgumentException(
+          "Directory at " + block + ":" + offset + " exceeds the directory table");
+    }
+    data.limit(length);
+    return new Squashfs.Directory(new ByteBufferKaitaiStream(data.slice()), null, root);
+  }
+
+  /**
+   * Reads metablocks from {@code start} until at least {@code length} bytes following {@code
+   * offset} are available or {@code end} is reached.
+   *
+   * @return the decompressed data, starting at {@code offset}
+   */
+  private static ByteBuffer read(Squashfs root, long start, long end, int offset, int length) {
+    List<byte[]> metablocks = new ArrayList<>();
+    int size = 0;
+    long position = start;
+    while (size - offset < length && position < end) {
+      byte[] data = metablock(root, position);
+      metablocks.add(data);
+      size += data.length;
+      position += METABLOCK_HEADER_SIZE + compressedLength(root, position);
+    }
+    if (metablocks.size() == 1) {
+      byte[] data = metablocks.get(0);
+      return ByteBuffer.wrap(data, offset, Math.max(0, data.length - offset)).slice();
+    }
+    byte[] combined = new byte[Math.max(0, size - offset)];
+    int skip = offset;
+    int pos = 0;
+    for (byte[] data : metablocks) {
+      int from = Math.min(skip, data.length);
+      System.arraycopy(data, from, combined, pos, data.length - from);
+      pos += data.length - from;
+      skip -= from;
+    }
+    return ByteBuffer.wrap(combined);
+  }
+
+  /**
+   * Returns the entry of a fragment block in the fragment table. Only the metablock holding the
+   * entry is read, through the {@link MetablockCache}, so the {@code fragments} instance of the
+   * parser with the whole table is never built.
+   *
+   * @param index the fragment index of a file inode
+   * @return the fragment or {@code null}, if the index marks a file without a fragment
+   * @throws IllegalArgumentException if the index exceeds the fragment table
+   */
+  public static Squashfs.Fragment fragment(Squashfs root, long index) {
+    if (index == NO_FRAGMENT) {
+      return null;
+    }
+    if (index < 0 || index >= root.superblock().fragCount()) {
+      throw new IllegalArgumentException("Fragment index " + index + " exceeds the fragment table");
+    }
+    int entriesPerMetablock = DecompressMetablock.METABLOCK_SIZE / FRAGMENT_ENTRY_SIZE;
+    long position =
+        MappedKaitaiStream.read(
+                root._io(),
+                root.superblock().fragmentTableStart() + index / entriesPerMetablock * Long.BYTES,
+                Long.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .getLong();
+    byte[] metablock = metablock(root, position);
+    int offset = (int) (index % entriesPerMetablock) * FRAGMENT_ENTRY_SIZE;
+    if (offset + FRAGMENT_ENTRY_SIZE > metablock.length) {
+      throw new IllegalArgumentException(
+          "Fragment table metablock at " + position + " has no entry for fragment " + index);
+    }
+    return new Squashfs.Fragment(
+        new ByteBufferKaitaiStream(ByteBuffer.wrap(metablock, offset, FRAGMENT_ENTRY_SIZE).slice()),
+        null,
+        root);
+  }
+
+  /**
+   * Returns the positions of the metablocks of the fragment, export, id, inode and directory
+   * tables, in that order. Nothing is decompressed: the positions of the lookup table metablocks
+   * are read from their indexes, while the inode and directory tables are scanned by their
+   * metablock headers.
+   */
+  public static long[] metablocks(Squashfs root) {
+    Squashfs.Superblock superblock = root.superblock();
+    List<Long> positions = new ArrayList<>();
+    references(
+        root,
+        superblock.fragmentTableStart(),
+        superblock.fragCount(),
+        FRAGMENT_ENTRY_SIZE,
+        positions);
+    if (superblock.flags().nfsExportTable()) {
+      references(
+          root,
+          superblock.exportTableStart(),
+          superblock.inodeCount(),
+          EXPORT_ENTRY_SIZE,
+          positions);
+    }
+    references(root, superblock.idTableStart(), superblock.idCount(), ID_ENTRY_SIZE, positions);
+    // the lookup tables start with their metablocks, which directly follow the directory table
+    long directoryTableEnd = superblock.fragmentTableStart();
+    for (long position : positions) {
+      if (position > superblock.directoryTableStart()) {
+        directoryTableEnd = Math.min(directoryTableEnd, position);
+      }
+    }
+    scan(root, superblock.inodeTableStart(), superblock.directoryTableStart(), positions);
+    scan(root, superblock.directoryTableStart(), directoryTableEnd, positions);
+    return positions.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  /**
+   * Decompresses the metablocks of the metadata tables in parallel into the {@link MetablockCache}
+   * of the image, so walking the tables afterwards doesn't have to decompress them one after the
+   * other. At most as many metablocks as the cache can hold are decompressed, starting with the
+   * small lookup tables.
+   *
+   * @param executor runs the decompression of the metablocks, streams that are not memory mapped
+   *     are always read by the calling thread
+   * @return the number of metablocks that were decompressed
+   */
+  public static int preload(Squashfs root, Executor executor) {
+    MetablockCache cache = MetablockCache.of(root);
+    long[] positions = metablocks(root);
+    int count = Math.min(positions.length, cache.capacity());
+    // other streams can't be read concurrently
+    Executor decompressor = root._io() instanceof MappedKaitaiStream ? executor : Runnable::run;
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+    for (int i = 0; i < count; i++) {
+      long position = positions[i];
+      futures[i] =
+          CompletableFuture.runAsync(
+              () -> {
+                try {
+                  metablock(root, position);
+                } catch (RuntimeException e) {
+                  // reported, when the metablock is actually read
+                }
+              },
+              decompressor);
+    }
+    CompletableFuture.allOf(futures).join();
+    return count;
+  }
+
+  /**
+   * Releases everything, that has been decoded from the image besides the parser itself: the cached
+   * metablocks and the {@link InodeLookup}. Both are built again on demand, so this is safe to call
+   * whenever the metadata is not needed for a while, and should be called when the image is closed.
+   */
+  public static void release(Squashfs root) {
+    MetablockCache.release(root);
+    InodeLookup.release(root);
+  }
+
+  /** Adds the metablock positions from the index of a lookup table. */
+  private static void references(
+      Squashfs root, long start, long entries, int entrySize, List<Long> positions) {
+    if (start == ABSENT || entries == 0) {
+      return;
+    }
+    long metablocks =
+        (entries * entrySize + DecompressMetablock.METABLOCK_SIZE - 1)
+            / DecompressMetablock.METABLOCK_SIZE;
+    ByteBuffer index =
+        MappedKaitaiStream.read(root._io(), start, (int) metablocks * Long.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < metablocks; i++) {
+      positions.add(index.getLong());
+    }
+  }
+
+  /** Adds the positions of the metablocks between {@code start} and {@code end}. */
+  private static void scan(Squashfs root, long start, long end, List<Long> positions) {
+    long position = start;
+    while (position + METABLOCK_HEADER_SIZE <= end) {
+      positions.add(position);
+      position += METABLOCK_HEADER_SIZE + compressedLength(root, position);
+    }
+  }
+
+  /** Returns the decompressed metablock at the given position of the image. */
+  static byte[] metablock(Squashfs root, long position) {
+    return MetablockCache.of(root)
+        .get(
+            position,
+            offset -> {
+              MetablockEvent event = new MetablockEvent();
+              event.begin();
+              int header = header(root, offset);
+              ByteBuffer raw =
+                  MappedKaitaiStream.read(
+                      root._io(), offset + METABLOCK_HEADER_SIZE, header & 0x7FFF);
+              byte[] data =
+                  new Decompress(
+                          (header & 0x8000) == 0,
+                          root.superblock().compressor(),
+                          DecompressMetablock.METABLOCK_SIZE,
+                          false)
+                      .decode(raw);
+              event.commit(offset, 1, data.length);
+              return data;
+            });
+  }
+
+  private static int compressedLength(Squashfs root, long position) {
+    return header(root, position) & 0x7FFF;
+  }
+
+  private static int header(Squashfs root, long position) {
+    return MappedKaitaiStream.read(root._io(), position, METABLOCK_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .getShort()
+        & 0xFFFF;
+  }
+}
@@ -0,0 +1,79 @@
+package de.tisoft.jsquashfs.compression;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import de.tisoft.jsquashfs.compression.gzip.Gz;
+import de.tisoft.jsquashfs.compression.zstd.Zstd;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+
+class DecompressorTest {
+  private static final int SIZE = 10_000;
+
+  @Test
+  void testZstdBuffers() {
+    byte[] data = data();
+    byte[] compressed = com.github.luben.zstd.Zstd.compress(data);
+    // mapped blocks are direct, the blocks are decompressed into arrays and direct buffers
+    for (boolean directInput : new boolean[] {false, true}) {
+      for (boolean directOutput : new boolean[] {false, true}) {
+        ByteBuffer in = buffer(compressed, directInput);
+        ByteBuffer out = directOutput ? ByteBuffer.allocateDirect(SIZE) : ByteBuffer.allocate(SIZE);
+        assertThat(new Zstd().uncompress(in, out)).isEqualTo(SIZE);
+        assertThat(in.hasRemaining()).isFalse();
+        assertThat(out.position()).isEqualTo(SIZE);
+        assertThat(bytes(out.flip())).isEqualTo(data);
+      }
+    }
+  }
+
+  @Test
+  void testGzExceedsMaxSize() {
+    byte[] data = data();
+    Deflater deflater = new Deflater();
+    deflater.setInput(data);
+    deflater.finish();
+    byte[] compressed = new byte[SIZE * 2];
+    int length = deflater.deflate(compressed);
+    compressed = Arrays.copyOf(compressed, length);
+
+    Gz gz = new Gz();
+    byte[] dest = new byte[SIZE];
+    assertThat(gz.uncompress(compressed, 0, compressed.length, dest, 0, SIZE)).isEqualTo(SIZE);
+    assertThat(dest).isEqualTo(data);
+    byte[] input = compressed;
+    assertThatThrownBy(() -> gz.uncompress(input, 0, input.length, dest, 0, SIZE - 1))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("exceeds");
+    assertThatThrownBy(() -> gz.uncompress(buffer(input, true), ByteBuffer.allocate(SIZE - 1)))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("exceeds");
+  }
+
+  private static byte[] data() {
+    byte[] data = new byte[SIZE];
+    Random random = new Random(42);
+    // compressible, but not trivially
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) random.nextInt(16);
+    }
+    return data;
+  }
+
+  private static ByteBuffer buffer(byte[] data, boolean direct) {
+    ByteBuffer buffer =
+        direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+    buffer.put(data).flip();
+    return buffer;
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,195 @@
+package de.tisoft.jsquashfs.image;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import de.tisoft.jsquashfs.parser.MetablockCache;
+import de.tisoft.jsquashfs.parser.Metadata;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class SquashfsImageTest {
+  public static File targetDir() {
+    String relPath =
+        SquashfsImageTest.class.getProtectionDomain().getCodeSource().getLocation().getFile();
+    return new File(relPath + "../../../test_data");
+  }
+
+  private static File[] images() {
+    return targetDir().listFiles((dir, name) -> name.startsWith("sq.img"));
+  }
+
+  private static List<Path> files() throws IOException {
+    Path data = new File(targetDir(), "data").toPath();
+    try (Stream<Path> files = Files.walk(data)) {
+      return files.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testRead(File file) throws Exception {
+    Path data = new File(targetDir(), "data").toPath();
+    try (SquashfsImage image = SquashfsImage.open(file.toPath())) {
+      for (Path source : files()) {
+        String path = data.relativize(source).toString();
+        try (InputStream in = image.newInputStream(path)) {
+          assertThat(in.readAllBytes()).isEqualTo(Files.readAllBytes(source));
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testSeek(File file) throws Exception {
+    Path data = new File(targetDir(), "data").toPath();
+    try (SquashfsImage image = SquashfsImage.open(file.toPath())) {
+      for (Path source : files()) {
+        byte[] expected = Files.readAllBytes(source);
+        try (SeekableByteChannel channel =
+            image.newByteChannel("/./" + data.relativize(source) + "/../" + source.getFileName())) {
+          assertThat(channel.size()).isEqualTo(expected.length);
+          for (long position : new long[] {expected.length / 2, expected.length - 1, 0, 1}) {
+            if (position < 0 || position >= expected.length) {
+              continue;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            channel.position(position);
+            int read = channel.read(buffer);
+            int length = (int) Math.min(100, expected.length - position);
+            assertThat(read).isEqualTo(length);
+            assertThat(Arrays.copyOf(buffer.array(), read))
+                .isEqualTo(Arrays.copyOfRange(expected, (int) position, (int) position + length));
+          }
+          channel.position(expected.length);
+          assertThat(channel.read(ByteBuffer.allocate(1))).isEqualTo(-1);
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testPreload(File file) throws Exception {
+    Path data = new File(targetDir(), "data").toPath();
+    try (SquashfsImage image = SquashfsImage.open(file.toPath())) {
+      MetablockCache cache = MetablockCache.of(image.squashfs());
+      int preloaded = Metadata.preload(image.squashfs(), ForkJoinPool.commonPool());
+      assertThat(preloaded).isPositive().isEqualTo(cache.misses()).isEqualTo(cache.size());
+      for (Path source : files()) {
+        try (InputStream in = image.newInputStream(data.relativize(source).toString())) {
+          assertThat(in.readAllBytes()).isEqualTo(Files.readAllBytes(source));
+        }
+      }
+      // every metablock of the metadata tables has already been decompressed
+      assertThat(cache.misses()).isEqualTo(preloaded);
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testRelease(File file) throws Exception {
+    Path data = new File(targetDir(), "data").toPath();
+    try (SquashfsImage image = SquashfsImage.open(file.toPath())) {
+      for (int i = 0; i < 2; i++) {
+        for (Path source : files()) {
+          try (InputStream in = image.newInputStream(data.relativize(source).toString())) {
+            assertThat(in.readAllBytes()).isEqualTo(Files.readAllBytes(source));
+          }
+        }
+        assertThat(MetablockCache.of(image.squashfs()).size()).isPositive();
+        image.release();
+        // everything is decoded again on the next read
+        assertThat(image.blockCache().size()).isZero();
+        assertThat(MetablockCache.of(image.squashfs()).misses()).isZero();
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testIndex(File file, @TempDir Path temp) throws Exception {
+    Path data = new File(targetDir(), "data").toPath();
+    Path index = temp.resolve("index");
+    try (SquashfsImage image = SquashfsImage.open(file.toPath(), index)) {
+      assertThat(index).exists();
+      MetablockCache cache = MetablockCache.of(image.squashfs());
+      long misses = cache.misses();
+      for (Path source : files()) {
+        try (SeekableByteChannel channel =
+            image.newByteChannel("./" + data.relativize(source) + "/../" + source.getFileName())) {
+          assertThat(Channels.newInputStream(channel).readAllBytes())
+              .isEqualTo(Files.readAllBytes(source));
+        }
+      }
+      // files are read without their inodes
+      assertThat(cache.misses()).isEqualTo(misses);
+      assertThat(image.lookup("dir-xattr")).isPresent();
+      assertThat(image.lookup("does/not/exist")).isEmpty();
+      assertThatThrownBy(() -> image.newByteChannel("does-not-exist"))
+          .isInstanceOf(NoSuchFileException.class);
+      assertThatThrownBy(() -> image.newByteChannel("/")).isInstanceOf(IOException.class);
+      assertDotDot(image);
+    }
+
+    // an index in an unknown format is rebuilt, an index that can't be read is left alone
+    Files.write(index, new byte[4096]);
+    try (SquashfsImage image = SquashfsImage.open(file.toPath(), index)) {
+      assertThat(SquashfsIndex.open(image, index).size()).isEqualTo(files().size() + 2);
+    }
+    Files.delete(index);
+    Files.createDirectory(index);
+    assertThatThrownBy(() -> SquashfsImage.open(file.toPath(), index))
+        .isInstanceOf(IOException.class);
+    assertThat(index).isDirectory();
+    Files.delete(index);
+    SquashfsImage.open(file.toPath(), index).close();
+
+    // an index of a different image is rebuilt
+    File other =
+        Arrays.stream(images()).filter(image -> !image.equals(file)).findFirst().orElseThrow();
+    try (SquashfsImage image = SquashfsImage.open(other.toPath(), index);
+        SquashfsImage previous = SquashfsImage.open(file.toPath())) {
+      assertThatThrownBy(() -> SquashfsIndex.open(previous, index)).isInstanceOf(IOException.class);
+      assertThat(SquashfsIndex.open(image, index).size()).isEqualTo(files().size() + 2);
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testLookupMissing(File file) throws Exception {
+    try (SquashfsImage image = SquashfsImage.open(file.toPath())) {
+      assertThat(image.lookup("/")).isPresent();
+      assertDotDot(image);
+      assertThat(image.lookup("does/not/exist")).isEmpty();
+      assertThatThrownBy(() -> image.newByteChannel("does-not-exist"))
+          .isInstanceOf(NoSuchFileException.class);
+      assertThatThrownBy(() -> image.newByteChannel("/")).isInstanceOf(IOException.class);
+    }
+  }
+
+  /** ".." is resolved the same way, with and without an index. */
+  private static void assertDotDot(SquashfsImage image) {
+    assertThat(image.lookup("..")).isPresent();
+    assertThat(image.lookup("dir-xattr/../dir-xattr")).isPresent();
+    // a missing component is not skipped by a following ".."
+    assertThat(image.lookup("does-not-exist/..")).isEmpty();
+    assertThat(image.lookup("does-not-exist/../dir-xattr")).isEmpty();
+  }
+}
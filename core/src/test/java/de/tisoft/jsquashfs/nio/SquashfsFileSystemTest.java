@@ -0,0 +1,91 @@
+package de.tisoft.jsquashfs.nio;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class SquashfsFileSystemTest {
+  private static File targetDir() {
+    String relPath =
+        SquashfsFileSystemTest.class.getProtectionDomain().getCodeSource().getLocation().getFile();
+    return new File(relPath + "../../../test_data");
+  }
+
+  private static File[] images() {
+    return targetDir().listFiles((dir, name) -> name.startsWith("sq.img"));
+  }
+
+  private static List<String> walk(Path root) throws Exception {
+    try (Stream<Path> paths = Files.walk(root)) {
+      return paths
+          .map(path -> root.relativize(path).toString())
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testWalk(File file) throws Exception {
+    Path data = new File(targetDir(), "data").toPath();
+    try (FileSystem fileSystem = FileSystems.newFileSystem(file.toPath(), (ClassLoader) null)) {
+      Path root = fileSystem.getPath("/");
+      assertThat(walk(root)).isEqualTo(walk(data));
+      for (String name : walk(data)) {
+        Path source = data.resolve(name);
+        Path path = root.resolve(name);
+        PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class);
+        assertThat(attributes.isDirectory()).isEqualTo(Files.isDirectory(source));
+        assertThat(attributes.isRegularFile()).isEqualTo(Files.isRegularFile(source));
+        if (attributes.isRegularFile()) {
+          assertThat(attributes.size()).isEqualTo(Files.size(source));
+          assertThat(Files.readAllBytes(path)).isEqualTo(Files.readAllBytes(source));
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testUri(File file) throws Exception {
+    URI uri = URI.create("squashfs:" + file.toPath().toUri());
+    try (FileSystem fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+      assertThat(FileSystems.getFileSystem(uri)).isSameAs(fileSystem);
+      assertThatThrownBy(() -> FileSystems.newFileSystem(uri, Collections.emptyMap()))
+          .isInstanceOf(FileSystemAlreadyExistsException.class);
+      Path path = fileSystem.getPath("/dir-xattr");
+      assertThat(Path.of(path.toUri())).isEqualTo(path);
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testReadOnly(File file) throws Exception {
+    try (FileSystem fileSystem = FileSystems.newFileSystem(file.toPath(), (ClassLoader) null)) {
+      assertThat(fileSystem.isReadOnly()).isTrue();
+      assertThatThrownBy(() -> Files.createDirectory(fileSystem.getPath("/new")))
+          .isInstanceOf(ReadOnlyFileSystemException.class);
+      assertThatThrownBy(() -> Files.newOutputStream(fileSystem.getPath("/new")))
+          .isInstanceOf(ReadOnlyFileSystemException.class);
+      assertThatThrownBy(() -> Files.size(fileSystem.getPath("/does/not/exist")))
+          .isInstanceOf(NoSuchFileException.class);
+      assertThat(Files.exists(fileSystem.getPath("/does/not/exist"))).isFalse();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package de.tisoft.jsquashfs.parser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class InodeLookupTest {
+  private static File[] images() {
+    String relPath =
+        InodeLookupTest.class.getProtectionDomain().getCodeSource().getLocation().getFile();
+    return new File(relPath + "../../../test_data")
+        .listFiles((dir, name) -> name.startsWith("sq.img"));
+  }
+
+  @ParameterizedTest
+  @MethodSource("images")
+  void testLookup(File file) throws Exception {
+    Squashfs squashfs = new Squashfs(new MappedKaitaiStream(file.toPath()));
+    Map<Long, Long> references = new HashMap<>();
+    long rootReference = squashfs.superblock().rootInodeRef().raw();
+    collect(Metadata.inode(squashfs, rootReference), rootReference, references);
+    assertThat(references).hasSize((int) squashfs.superblock().inodeCount());
+
+    // the test images have an export table, the other lookup walks the directory tree
+    assertThat(squashfs.superblock().flags().nfsExportTable()).isTrue();
+    for (InodeLookup lookup :
+        new InodeLookup[] {InodeLookup.of(squashfs), new InodeLookup(squashfs, false)}) {
+      for (Map.Entry<Long, Long> entry : references.entrySet()) {
+        assertThat(lookup.reference(entry.getKey())).isEqualTo(entry.getValue());
+        assertThat(lookup.inode(entry.getKey()).inodeNumber()).isEqualTo(entry.getKey());
+      }
+      assertThatThrownBy(() -> lookup.reference(0)).isInstanceOf(IllegalArgumentException.class);
+      assertThatThrownBy(() -> lookup.reference(references.size() + 1))
+          .isInstanceOf(IllegalArgumentException.class);
+    }
+  }
+
+  @Test
+  void testImageIsNotRetained() throws Exception {
+    Squashfs squashfs = new Squashfs(new MappedKaitaiStream(images()[0].toPath()));
+    InodeLookup.of(squashfs).inode(1);
+    WeakReference<Squashfs> reference = new WeakReference<>(squashfs);
+    squashfs = null;
+    for (int i = 0; i < 50 && reference.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(reference.get()).isNull();
+  }
+
+  private static void collect(
+      Squashfs.InodeHeader inodeHeader, long reference, Map<Long, Long> references) {
+    references.put(inodeHeader.inodeNumber(), reference);
+    if (inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
+      for (Squashfs.DirectoryHeader directoryHeader :
+          Metadata.directory(inodeHeader).directoryHeader()) {
+        for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+          collect(
+              Metadata.inode(inodeHeader._root(), directoryHeader.start(), directoryEntry.offset()),
+              (directoryHeader.start() << 16) | directoryEntry.offset(),
+              references);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package de.tisoft.jsquashfs.parser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.kaitai.struct.ByteBufferKaitaiStream;
+import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedKaitaiStreamTest {
+  @TempDir private Path directory;
+
+  @Test
+  void testReadAcrossSegments() throws Exception {
+    byte[] data = new byte[10_000];
+    new Random(42).nextBytes(data);
+    Path file = directory.resolve("data");
+    Files.write(file, data);
+
+    MappedKaitaiStream mapped = new MappedKaitaiStream(file, 1024, 4);
+    ByteBufferKaitaiStream expected = new ByteBufferKaitaiStream(data);
+    assertThat(mapped.size()).isEqualTo(data.length);
+    for (int pos : new int[] {0, 1019, 1020, 1021, 1022, 1023, 1024, 2047, 9980}) {
+      mapped.seek(pos);
+      expected.seek(pos);
+      assertThat(mapped.readU2le()).isEqualTo(expected.readU2le());
+      assertThat(mapped.readU4le()).isEqualTo(expected.readU4le());
+      assertThat(mapped.readS8be()).isEqualTo(expected.readS8be());
+      assertThat(mapped.pos()).isEqualTo(expected.pos());
+
+      mapped.seek(pos);
+      assertThat(mapped.readBytes(10)).isEqualTo(Arrays.copyOfRange(data, pos, pos + 10));
+      assertThat(bytes(mapped.slice(pos, 3))).isEqualTo(Arrays.copyOfRange(data, pos, pos + 3));
+      assertThat(bytes(mapped.slice(pos, 10))).isEqualTo(Arrays.copyOfRange(data, pos, pos + 10));
+    }
+    assertThat(bytes(mapped.slice(100, 5000))).isEqualTo(Arrays.copyOfRange(data, 100, 5100));
+
+    mapped.seek(data.length - 2);
+    assertThat(mapped.isEof()).isFalse();
+    assertThatThrownBy(mapped::readU4le).isInstanceOf(BufferUnderflowException.class);
+    mapped.seek(data.length);
+    assertThat(mapped.isEof()).isTrue();
+
+    mapped.close();
+    assertThatThrownBy(() -> mapped.slice(0, 10)).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  void testSliceWhileReading() throws Exception {
+    byte[] data = new byte[10_000];
+    new Random(42).nextBytes(data);
+    Path file = directory.resolve("data");
+    Files.write(file, data);
+
+    MappedKaitaiStream mapped = new MappedKaitaiStream(file, 1024, 4);
+    // slices are taken from other threads, while the parser reads through the stream
+    CompletableFuture<Void> slices =
+        CompletableFuture.runAsync(
+            () -> {
+              for (int i = 0; i < 100_000; i++) {
+                int pos = i % 9000;
+                assertThat(bytes(mapped.slice(pos, 4)))
+                    .isEqualTo(Arrays.copyOfRange(data, pos, pos + 4));
+              }
+            });
+    ByteBufferKaitaiStream expected = new ByteBufferKaitaiStream(data);
+    while (!slices.isDone()) {
+      int pos = (int) (System.nanoTime() % 9000);
+      mapped.seek(pos);
+      expected.seek(pos);
+      assertThat(mapped.readS4le()).isEqualTo(expected.readS4le());
+    }
+    slices.join();
+  }
+
+  @Test
+  void testParseImage() throws Exception {
+    File image = targetDir().listFiles((dir, name) -> name.startsWith("sq.img"))[0];
+    // tiny segments make sure, that the tables are read across segment boundaries
+    Squashfs squashfs = new Squashfs(new MappedKaitaiStream(image.toPath(), 1 << 16, 1 << 10));
+    Squashfs.InodeHeader root =
+        Metadata.inode(squashfs, squashfs.superblock().rootInodeRef().raw());
+    long entries =
+        Metadata.directory(root).directoryHeader().stream()
+            .mapToLong(header -> header.directoryEntry().size())
+            .sum();
+    assertThat(entries).isEqualTo(new File(targetDir(), "data").list().length);
+  }
+
+  private static File targetDir() {
+    String relPath =
+        MappedKaitaiStreamTest.class.getProtectionDomain().getCodeSource().getLocation().getFile();
+    return new File(relPath + "../../../test_data");
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
@@ -63,6 +63,10 @@ else
       done
     done
   done
+  # a file of only sparse blocks stores no data, so it starts where the data of the next file
+  # starts, a size that no other file has keeps it from being deduplicated
+  dd if=/dev/zero of=${datadir}/same-start-1-zero bs=128K count=12 > /dev/null 2>&1
+  dd if=/dev/urandom of=${datadir}/same-start-2-urandom bs=128K count=12 > /dev/null 2>&1
 fi
 
 # create file with xattrs
@@ -83,4 +87,18 @@ done
 for opts in "${uopts[@]}"; do
   echo "Building squashfs image using ${opts} option."
   mksquashfs ${datadir} ${testdir}/sq.img.${opts// /_} ${opts} || (echo "mksquashfs failed for ${opts} option."; continue)
-done
\ No newline at end of file
+done
+# create an image of many small files, which only consist of a fragment each
+smalldir=${testdir}/small-files
+if [ ! -d ${smalldir} ]; then
+  mkdir ${smalldir}
+  for ((count=1;${count}<=2000;count++)); do
+    head -c ${count} /dev/urandom > ${smalldir}/file-${count}
+  done
+  # a hard link and a duplicate, which mksquashfs stores only once
+  ln ${smalldir}/file-1000 ${smalldir}/link-1000
+  cp ${smalldir}/file-1999 ${smalldir}/copy-1999
+  cp ${smalldir}/file-2000 ${smalldir}/copy-2000
+fi
+echo "Building squashfs image of small files."
+mksquashfs ${smalldir} ${testdir}/small-files.img || echo "mksquashfs failed for small files."
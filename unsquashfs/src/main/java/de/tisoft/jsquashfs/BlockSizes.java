@@ -0,0 +1,57 @@
+package de.tisoft.jsquashfs;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The block lists of file inodes, packed into one shared array.
+ *
+ * <p>The parser keeps a boxed {@code Long} for the size of every data block and builds a {@code
+ * DataBlock} object per block on top of it, all referencing the inode. A {@link FileInode} only
+ * keeps the position of its block sizes in this store, 4 bytes per block, so the parsed inode can
+ * be dropped as soon as the file has been recorded.
+ *
+ * <p>The store is filled and read by the thread, that walks the directory tree.
+ */
+final class BlockSizes {
+  // the largest array, that can be allocated on all VMs
+  static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+  private int[] sizes = new int[1024];
+  private int size;
+
+  /**
+   * Appends the block sizes of a file, as stored in the inode.
+   *
+   * @return the index of the first block in the store
+   */
+  int add(List<Long> blockSizes) {
+    int first = size;
+    long minLength = (long) size + blockSizes.size();
+    if (minLength > sizes.length) {
+      sizes = Arrays.copyOf(sizes, newLength(sizes.length, minLength, MAX_ARRAY_LENGTH));
+    }
+    for (Long blockSize : blockSizes) {
+      sizes[size++] = blockSize.intValue();
+    }
+    return first;
+  }
+
+  /** Returns the size of a block, as stored in the inode. */
+  long get(int index) {
+    return sizes[index] & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Returns the length to grow an array of {@code length} elements to, so it has room for {@code
+   * minLength} elements. The length is doubled, but not beyond {@code maxLength}.
+   *
+   * @throws OutOfMemoryError if more than {@code maxLength} elements are needed
+   */
+  static int newLength(int length, long minLength, int maxLength) {
+    if (minLength > maxLength) {
+      throw new OutOfMemoryError("Can't grow an array to " + minLength + " elements");
+    }
+    return (int) Math.min(Math.max(minLength, 2L * length), maxLength);
+  }
+}
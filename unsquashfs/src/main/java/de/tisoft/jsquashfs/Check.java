@@ -0,0 +1,482 @@
+package de.tisoft.jsquashfs;
+
+import de.tisoft.jsquashfs.parser.Decompress;
+import de.tisoft.jsquashfs.parser.InodeLookup;
+import de.tisoft.jsquashfs.parser.MappedKaitaiStream;
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies an image by decompressing all of it, without writing anything.
+ *
+ * <p>The metablocks of the inode and directory tables, all fragment blocks and the data blocks of
+ * every file are decompressed on a work-stealing pool, while the calling thread walks the directory
+ * tree. Block sizes are validated against the block size of the superblock, fragment indices
+ * against the fragment table and every directory entry has to resolve to an inode. Problems are
+ * collected with the offset in the image they were found at, and reported at the end.
+ *
+ * <p>The walk keeps no state per file or block. The fragment blocks are decompressed before the
+ * tree is walked, so the data of a file can be checked against the size of its fragment right away,
+ * and the data blocks already checked are merged into ranges of the image.
+ */
+final class Check implements AutoCloseable {
+  private static final int METABLOCK_SIZE = 8192;
+  private static final int METABLOCK_HEADER_SIZE = 2;
+  // blocks in flight per processor
+  static final int BLOCKS_PER_PROCESSOR = 4;
+
+  /**
+   * The parts of the image, that have already been checked, as sorted and disjoint ranges. The data
+   * blocks are mostly visited in the order they were written, so usually the last range just grows.
+   */
+  private static final class Ranges {
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private int count;
+
+    /**
+     * Adds a range.
+     *
+     * @return false, if the range has already been added before
+     */
+    boolean add(long start, long end) {
+      // the first range, that ends at or after the start
+      int i = count;
+      while (i > 0 && ends[i - 1] >= start) {
+        i--;
+      }
+      if (i < count && starts[i] <= start && end <= ends[i]) {
+        return false;
+      }
+      // all ranges from i on, that overlap or touch the new range, are merged into it
+      int j = i;
+      while (j < count && starts[j] <= end) {
+        start = Math.min(start, starts[j]);
+        end = Math.max(end, ends[j]);
+        j++;
+      }
+      int removed = j - i;
+      if (removed == 0 && count == starts.length) {
+        int capacity = BlockSizes.newLength(count, count + 1L, BlockSizes.MAX_ARRAY_LENGTH);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+      }
+      if (removed != 1) {
+        System.arraycopy(starts, j, starts, i + 1, count - j);
+        System.arraycopy(ends, j, ends, i + 1, count - j);
+        count += 1 - removed;
+      }
+      starts[i] = start;
+      ends[i] = end;
+      return true;
+    }
+  }
+
+  private final Squashfs root;
+  private final long blockSize;
+  private final ForkJoinPool pool;
+  private final int maxInFlight;
+  private final Semaphore inFlight;
+  private final ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+  private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+  private final LongAdder decompressed = new LongAdder();
+  private final Ranges checkedBlocks = new Ranges();
+  private final Set<Long> checkedDirectories = new HashSet<>();
+  private final BlockSizes blockSizes = new BlockSizes();
+  private int[] fragmentSizes = new int[0];
+  private long files;
+  private long directories;
+
+  /**
+   * @param root the image
+   * @param processors the number of threads used for decompression
+   */
+  Check(Squashfs root, int processors) {
+    this.root = root;
+    this.blockSize = root.superblock().blockSize();
+    this.pool = new ForkJoinPool(processors);
+    this.maxInFlight = processors * BLOCKS_PER_PROCESSOR;
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Checks the whole image and prints a report.
+   *
+   * @return the number of problems found
+   */
+  int check(PrintStream out) throws InterruptedIOException {
+    long startTime = System.nanoTime();
+    checkTables();
+    Squashfs.Superblock superblock = root.superblock();
+    checkMetablocks("inode table", superblock.inodeTableStart(), superblock.directoryTableStart());
+    checkMetablocks("directory table", superblock.directoryTableStart(), directoryTableEnd());
+    checkFragments();
+    // the files are checked against the sizes of their fragments
+    awaitPending();
+    long rootInodeRef = superblock.rootInodeRef().raw();
+    try {
+      checkTree(Metadata.inode(root, rootInodeRef), rootInodeRef, "");
+    } catch (RuntimeException e) {
+      errors.add(
+          "root inode at " + (rootInodeRef >>> 16) + ":" + (rootInodeRef & 0xFFFF) + ": " + e);
+    }
+    awaitPending();
+
+    double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+    double megabytes = decompressed.sum() / (1024.0 * 1024.0);
+    for (String error : errors) {
+      out.println(error);
+    }
+    out.printf(
+        "%d files, %d directories, %.1f MB decompressed in %.2f s (%.1f MB/s), %d errors%n",
+        files, directories, megabytes, seconds, megabytes / seconds, errors.size());
+    out.flush();
+    return errors.size();
+  }
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+
+  /** Reads the id, fragment and export tables, which are small and read on the calling thread. */
+  private void checkTables() {
+    Squashfs.Superblock superblock = root.superblock();
+    try {
+      root.uidGidEntries().uidGidEntries();
+    } catch (RuntimeException e) {
+      errors.add("id table at " + superblock.idTableStart() + ": " + e);
+    }
+    try {
+      root.fragments().fragments();
+    } catch (RuntimeException e) {
+      errors.add("fragment table at " + superblock.fragmentTableStart() + ": " + e);
+    }
+    if (superblock.flags().nfsExportTable()) {
+      try {
+        root.exportTable().data();
+      } catch (RuntimeException e) {
+        errors.add("export table at " + superblock.exportTableStart() + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Returns the end of the directory table. It is followed by the metablocks of the fragment,
+   * export and id tables, which start at the first metablock their index references.
+   */
+  private long directoryTableEnd() {
+    Squashfs.Superblock superblock = root.superblock();
+    long end = superblock.fragmentTableStart();
+    List<Squashfs.MetablockReferenceList> tables = new ArrayList<>();
+    try {
+      tables.add(root.fragmentTable());
+      if (superblock.flags().nfsExportTable()) {
+        tables.add(root.exportTable());
+      }
+      tables.add(root.idTable());
+    } catch (RuntimeException e) {
+      // already reported with the tables
+    }
+    for (Squashfs.MetablockReferenceList table : tables) {
+      for (Squashfs.MetablockReference reference : table.metablockReference()) {
+        if (reference.position() > superblock.directoryTableStart()) {
+          end = Math.min(end, reference.position());
+        }
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Decompresses the metablocks between {@code start} and {@code end}. Every metablock but the last
+   * has to be full.
+   */
+  private void checkMetablocks(String table, long start, long end) throws InterruptedIOException {
+    long position = start;
+    while (position < end) {
+      long metablock = position;
+      int header;
+      try {
+        header =
+            MappedKaitaiStream.read(root._io(), position, METABLOCK_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .getShort()
+                & 0xFFFF;
+      } catch (RuntimeException e) {
+        errors.add(table + ": metablock at " + metablock + " exceeds the image");
+        return;
+      }
+      int length = header & 0x7FFF;
+      position += METABLOCK_HEADER_SIZE + length;
+      if (length > METABLOCK_SIZE || position > end) {
+        errors.add(table + ": metablock at " + metablock + " has invalid size " + length);
+        return;
+      }
+      boolean last = position == end;
+      Decompress decompress =
+          new Decompress(
+              (header & 0x8000) == 0, root.superblock().compressor(), METABLOCK_SIZE, false);
+      ByteBuffer raw =
+          MappedKaitaiStream.read(root._io(), metablock + METABLOCK_HEADER_SIZE, length);
+      submit(
+          () -> {
+            int size = decode(decompress, raw, table + ": metablock", metablock);
+            if (size >= 0 && size < METABLOCK_SIZE && !last) {
+              errors.add(
+                  table + ": metablock at " + metablock + " decompresses to " + size + " bytes");
+            }
+          });
+    }
+  }
+
+  /** Decompresses every block of the fragment table. */
+  private void checkFragments() throws InterruptedIOException {
+    List<Squashfs.Fragment> fragments;
+    try {
+      fragments = root.fragments().fragments();
+    } catch (RuntimeException e) {
+      // already reported with the tables
+      return;
+    }
+    fragmentSizes = new int[fragments.size()];
+    for (int i = 0; i < fragments.size(); i++) {
+      int index = i;
+      long start = fragments.get(i).start();
+      long size = fragments.get(i).compressionAndLen();
+      if (checkBlock("fragment " + i, start, size)) {
+        Decompress decompress = decompress(size);
+        ByteBuffer raw = readRaw(start, size);
+        submit(() -> fragmentSizes[index] = decode(decompress, raw, "fragment", start));
+      }
+    }
+  }
+
+  private void checkTree(Squashfs.InodeHeader inodeHeader, long reference, String path)
+      throws InterruptedIOException {
+    if (root.superblock().flags().nfsExportTable()) {
+      checkExport(inodeHeader, reference, path);
+    }
+    if (inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
+      // a directory is in the tree once, entries pointing back to it would recurse forever
+      if (!checkedDirectories.add(reference)) {
+        errors.add(
+            path
+                + "/: directory inode at "
+                + (reference >>> 16)
+                + ":"
+                + (reference & 0xFFFF)
+                + " has already been checked, the directory tree has a loop");
+        return;
+      }
+      directories++;
+      Squashfs.Directory directory;
+      try {
+        directory = Metadata.directory(inodeHeader);
+      } catch (RuntimeException e) {
+        errors.add(path + "/: directory listing can't be read: " + e);
+        return;
+      }
+      for (Squashfs.DirectoryHeader directoryHeader : directory.directoryHeader()) {
+        if (directoryHeader.directoryEntry() == null) {
+          continue;
+        }
+        for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+          String entryPath = path + '/' + directoryEntry.name();
+          Squashfs.InodeHeader child;
+          try {
+            child = Metadata.inode(root, directoryHeader.start(), directoryEntry.offset());
+          } catch (RuntimeException e) {
+            errors.add(
+                entryPath
+                    + ": directory entry does not resolve to an inode at "
+                    + directoryHeader.start()
+                    + ":"
+                    + directoryEntry.offset());
+            continue;
+          }
+          checkTree(child, (directoryHeader.start() << 16) | directoryEntry.offset(), entryPath);
+        }
+      }
+    } else if (FileInode.isFile(inodeHeader)) {
+      files++;
+      FileInode file;
+      try {
+        file = FileInode.of(inodeHeader, blockSizes);
+      } catch (RuntimeException e) {
+        // like a fragment index beyond the fragment table
+        errors.add(path + ": " + e.getMessage());
+        return;
+      }
+      checkFile(file, path);
+    }
+  }
+
+  /** Checks, that the export table maps the number of an inode to the reference of the inode. */
+  private void checkExport(Squashfs.InodeHeader inodeHeader, long reference, String path) {
+    String entry = path.isEmpty() ? "/" : path;
+    try {
+      long exported = InodeLookup.of(root).reference(inodeHeader.inodeNumber());
+      if (exported != reference) {
+        errors.add(
+            entry
+                + ": export table maps inode "
+                + inodeHeader.inodeNumber()
+                + " to "
+                + (exported >>> 16)
+                + ":"
+                + (exported & 0xFFFF));
+      }
+    } catch (RuntimeException e) {
+      errors.add(entry + ": export table: " + e.getMessage());
+    }
+  }
+
+  private void checkFile(FileInode file, String path) throws InterruptedIOException {
+    long position = 0;
+    long start = file.blocksStart;
+    for (int i = 0; i < file.blockCount; i++) {
+      long size = file.blockSize(i);
+      long blockStart = start;
+      long expected = Math.min(blockSize, file.fileSize - position);
+      position += blockSize;
+      start += FileInode.length(size);
+      // sparse blocks have no data, deduplicated blocks only need to be checked once
+      if (FileInode.length(size) == 0
+          || !checkedBlocks.add(blockStart, blockStart + FileInode.length(size))) {
+        continue;
+      }
+      if (checkBlock(path, blockStart, size)) {
+        Decompress decompress = decompress(size);
+        ByteBuffer raw = readRaw(blockStart, size);
+        submit(
+            () -> {
+              int decoded = decode(decompress, raw, path + ": block", blockStart);
+              if (decoded >= 0 && decoded != expected) {
+                errors.add(
+                    path
+                        + ": block at "
+                        + blockStart
+                        + " decompresses to "
+                        + decoded
+                        + " bytes instead of "
+                        + expected);
+              }
+            });
+      }
+    }
+    if (file.hasFragment() && file.fragIndex < fragmentSizes.length) {
+      int fragIndex = (int) file.fragIndex;
+      long end = file.fragmentOffset + file.fileSize - Math.min(position, file.fileSize);
+      // fragments that could not be decompressed have already been reported
+      if (fragmentSizes[fragIndex] >= 0 && end > fragmentSizes[fragIndex]) {
+        errors.add(path + ": data ends at " + end + " beyond fragment " + fragIndex);
+      }
+    }
+  }
+
+  /**
+   * Validates the location of a data block, before it is read.
+   *
+   * @param size the size of the block as stored in the inode or the fragment table
+   */
+  private boolean checkBlock(String what, long start, long size) {
+    long length = FileInode.length(size);
+    if (length > blockSize) {
+      errors.add(
+          what
+              + ": block at "
+              + start
+              + " has size "
+              + length
+              + " larger than the block size "
+              + blockSize);
+      return false;
+    }
+    if (start + length > root.superblock().bytesUsed()) {
+      errors.add(what + ": block at " + start + " exceeds the image");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Decompresses a block and counts the decompressed bytes.
+   *
+   * @return the decompressed size, or -1 if the block could not be decompressed
+   */
+  private int decode(Decompress decompress, ByteBuffer raw, String what, long offset) {
+    try {
+      int size = decompress.decode(raw, buffer(), 0);
+      decompressed.add(size);
+      return size;
+    } catch (RuntimeException e) {
+      errors.add(what + " at " + offset + " is corrupt: " + e);
+      return -1;
+    }
+  }
+
+  private void submit(Runnable task) throws InterruptedIOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    // completed tasks are not kept, waiting for all of them takes all permits instead
+    CompletableFuture.runAsync(task, pool)
+        .whenComplete(
+            (result, throwable) -> {
+              if (throwable != null) {
+                errors.add("check failed: " + throwable);
+              }
+              inFlight.release();
+            });
+  }
+
+  /** Waits until all submitted tasks have completed. */
+  private void awaitPending() throws InterruptedIOException {
+    try {
+      inFlight.acquire(maxInFlight);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    inFlight.release(maxInFlight);
+  }
+
+  private Decompress decompress(long size) {
+    return new Decompress(
+        FileInode.isCompressed(size), root.superblock().compressor(), blockSize, false);
+  }
+
+  private ByteBuffer readRaw(long start, long size) {
+    return MappedKaitaiStream.read(root._io(), start, (int) FileInode.length(size));
+  }
+
+  /** Returns the buffer of the current thread, it has room for a block and for a metablock. */
+  private byte[] buffer() {
+    byte[] buffer = buffers.get();
+    if (buffer == null) {
+      buffer = new byte[(int) Math.max(blockSize, METABLOCK_SIZE)];
+      buffers.set(buffer);
+    }
+    return buffer;
+  }
+}
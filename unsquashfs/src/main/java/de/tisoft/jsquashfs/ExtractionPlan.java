@@ -0,0 +1,150 @@
+package de.tisoft.jsquashfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the files of the directory walk and extracts them in the order of their data in the
+ * image.
+ *
+ * <p>Directory order jumps back and forth across the image, when it has been appended to or
+ * rebuilt. Extracting in ascending image offset reads the compressed data in one near-sequential
+ * pass. Files, that only consist of a fragment, are ordered by their fragment block, so files
+ * sharing a fragment block are extracted one after another, while it is in the cache.
+ *
+ * <p>Files, that are already up to date, are passed to the extractor in the same order, so it only
+ * has to remember the files at the current offset as sources for hard links and duplicates.
+ *
+ * <p>The plan holds every file of the image until the walk is done, so no object is kept per file.
+ * The fields of a {@link FileInode} are stored in a row of a shared {@code long[]}, and the
+ * destination as the index of its directory and its name. The {@link FileInode} and the path are
+ * built again, when the file is extracted.
+ */
+final class ExtractionPlan {
+  private static final int OFFSET = 0;
+  private static final int INODE_NUMBER = 1;
+  private static final int LINK_COUNT = 2;
+  private static final int MTIME = 3;
+  private static final int FILE_SIZE = 4;
+  private static final int BLOCKS_START = 5;
+  private static final int FRAG_INDEX = 6;
+  private static final int FRAGMENT_START = 7;
+  private static final int FRAGMENT_SIZE = 8;
+  private static final int FRAGMENT_OFFSET = 9;
+  // the block count in the upper and the first block in the lower half
+  private static final int BLOCKS = 10;
+  private static final int DIRECTORY = 11;
+  private static final int UNCHANGED = 12;
+  private static final int FIELDS = 13;
+
+  private final BlockSizes blockSizes;
+  private final List<File> directories = new ArrayList<>();
+  private long[] fields = new long[FIELDS * 1024];
+  private String[] names = new String[1024];
+  private int count;
+
+  /**
+   * @param blockSizes the store, that holds the block sizes of the planned files
+   */
+  ExtractionPlan(BlockSizes blockSizes) {
+    this.blockSizes = blockSizes;
+  }
+
+  /**
+   * @param unchanged whether the file is already up to date in the destination
+   */
+  void add(File dest, FileInode file, boolean unchanged) {
+    if (count == names.length) {
+      int capacity = BlockSizes.newLength(count, count + 1L, BlockSizes.MAX_ARRAY_LENGTH / FIELDS);
+      names = Arrays.copyOf(names, capacity);
+      fields = Arrays.copyOf(fields, capacity * FIELDS);
+    }
+    // the walk adds the files of a directory one after another
+    File parent = dest.getParentFile();
+    int last = directories.size() - 1;
+    if (last < 0 || !directories.get(last).equals(parent)) {
+      directories.add(parent);
+      last++;
+    }
+    int row = count * FIELDS;
+    fields[row + OFFSET] = file.dataOffset();
+    fields[row + INODE_NUMBER] = file.inodeNumber;
+    fields[row + LINK_COUNT] = file.linkCount;
+    fields[row + MTIME] = file.mtime;
+    fields[row + FILE_SIZE] = file.fileSize;
+    fields[row + BLOCKS_START] = file.blocksStart;
+    fields[row + FRAG_INDEX] = file.fragIndex;
+    fields[row + FRAGMENT_START] = file.fragmentStart;
+    fields[row + FRAGMENT_SIZE] = file.fragmentSize;
+    fields[row + FRAGMENT_OFFSET] = file.fragmentOffset;
+    fields[row + BLOCKS] = ((long) file.blockCount << 32) | (file.firstBlock & 0xFFFFFFFFL);
+    fields[row + DIRECTORY] = last;
+    fields[row + UNCHANGED] = unchanged ? 1 : 0;
+    names[count++] = dest.getName();
+  }
+
+  /** Schedules all files in disk order. Files with the same offset keep their directory order. */
+  void extract(ParallelExtractor extractor) throws IOException {
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    sort(order, new int[count], 0, count);
+    for (int index : order) {
+      int row = index * FIELDS;
+      long blocks = fields[row + BLOCKS];
+      FileInode file =
+          new FileInode(
+              fields[row + INODE_NUMBER],
+              fields[row + LINK_COUNT],
+              fields[row + MTIME],
+              fields[row + FILE_SIZE],
+              fields[row + BLOCKS_START],
+              fields[row + FRAG_INDEX],
+              fields[row + FRAGMENT_START],
+              fields[row + FRAGMENT_SIZE],
+              fields[row + FRAGMENT_OFFSET],
+              (int) (blocks >>> 32),
+              blockSizes,
+              (int) blocks);
+      File dest = new File(directories.get((int) fields[row + DIRECTORY]), names[index]);
+      names[index] = null;
+      if (fields[row + UNCHANGED] != 0) {
+        extractor.unchanged(dest, file);
+      } else {
+        extractor.extractFile(dest, file);
+      }
+    }
+    directories.clear();
+    fields = new long[0];
+    names = new String[0];
+    count = 0;
+  }
+
+  /** Sorts the files by their offset, the merge sort is stable. */
+  private void sort(int[] order, int[] buffer, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    sort(order, buffer, from, middle);
+    sort(order, buffer, middle, to);
+    System.arraycopy(order, from, buffer, from, to - from);
+    int left = from;
+    int right = middle;
+    for (int i = from; i < to; i++) {
+      if (right == to || (left < middle && compare(buffer[left], buffer[right]) <= 0)) {
+        order[i] = buffer[left++];
+      } else {
+        order[i] = buffer[right++];
+      }
+    }
+  }
+
+  private int compare(int a, int b) {
+    return Long.compare(fields[a * FIELDS + OFFSET], fields[b * FIELDS + OFFSET]);
+  }
+}
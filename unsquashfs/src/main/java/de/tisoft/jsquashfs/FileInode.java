@@ -0,0 +1,154 @@
+package de.tisoft.jsquashfs;
+
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.util.List;
+
+/**
+ * The parts of a basic or extended file inode, that are needed to extract its contents.
+ *
+ * <p>Only primitive fields are kept, the block sizes are packed into a shared {@link BlockSizes}
+ * store. No object of the parser is referenced, so the parsed inode can be garbage collected while
+ * the file waits for its extraction.
+ */
+final class FileInode {
+  final long inodeNumber;
+  final long linkCount;
+  final long mtime;
+  final long fileSize;
+  final long blocksStart;
+  final long fragIndex;
+  final long fragmentStart;
+  final long fragmentSize;
+  final long fragmentOffset;
+  final int blockCount;
+  private final BlockSizes blockSizes;
+  final int firstBlock;
+
+  FileInode(
+      long inodeNumber,
+      long linkCount,
+      long mtime,
+      long fileSize,
+      long blocksStart,
+      long fragIndex,
+      long fragmentStart,
+      long fragmentSize,
+      long fragmentOffset,
+      int blockCount,
+      BlockSizes blockSizes,
+      int firstBlock) {
+    this.inodeNumber = inodeNumber;
+    this.linkCount = linkCount;
+    this.mtime = mtime;
+    this.fileSize = fileSize;
+    this.blocksStart = blocksStart;
+    this.fragIndex = fragIndex;
+    this.fragmentStart = fragmentStart;
+    this.fragmentSize = fragmentSize;
+    this.fragmentOffset = fragmentOffset;
+    this.blockCount = blockCount;
+    this.blockSizes = blockSizes;
+    this.firstBlock = firstBlock;
+  }
+
+  private static FileInode of(
+      Squashfs.InodeHeader inodeHeader,
+      long linkCount,
+      long fileSize,
+      long blocksStart,
+      List<Long> blockSizes,
+      long fragIndex,
+      long fragmentOffset,
+      BlockSizes store) {
+    Squashfs.Fragment fragment = Metadata.fragment(inodeHeader._root(), fragIndex);
+    return new FileInode(
+        inodeHeader.inodeNumber(),
+        linkCount,
+        inodeHeader.mtime(),
+        fileSize,
+        blocksStart,
+        fragIndex,
+        fragment != null ? fragment.start() : -1,
+        fragment != null ? fragment.compressionAndLen() : 0,
+        fragmentOffset,
+        blockSizes.size(),
+        store,
+        store.add(blockSizes));
+  }
+
+  static boolean isFile(Squashfs.InodeHeader inodeHeader) {
+    return inodeHeader.type() == Squashfs.InodeType.BASIC_FILE
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_FILE;
+  }
+
+  /**
+   * @param store the store for the block sizes of the file
+   */
+  static FileInode of(Squashfs.InodeHeader inodeHeader, BlockSizes store) {
+    if (inodeHeader.type() == Squashfs.InodeType.BASIC_FILE) {
+      Squashfs.InodeHeaderBasicFile file = (Squashfs.InodeHeaderBasicFile) inodeHeader.header();
+      // basic files can't have hard links, they would be stored as extended files
+      return of(
+          inodeHeader,
+          1,
+          file.fileSize(),
+          file.blocksStart(),
+          file.blockSizes(),
+          file.fragIndex(),
+          file.blockOffset(),
+          store);
+    } else if (inodeHeader.type() == Squashfs.InodeType.EXTENDED_FILE) {
+      Squashfs.InodeHeaderExtendedFile file =
+          (Squashfs.InodeHeaderExtendedFile) inodeHeader.header();
+      return of(
+          inodeHeader,
+          file.hardlinkCount(),
+          file.fileSize(),
+          file.blocksStart(),
+          file.blockSizes(),
+          file.fragIndex(),
+          file.blockOffset(),
+          store);
+    } else {
+      throw new IllegalArgumentException("Not a file: " + inodeHeader.type());
+    }
+  }
+
+  /**
+   * Returns the offset of the first data, that has to be read for the file. Files with the same
+   * data, and all links to an inode, have the same offset.
+   */
+  long dataOffset() {
+    for (int i = 0; i < blockCount; i++) {
+      if (length(blockSize(i)) != 0) {
+        return blocksStart;
+      }
+    }
+    // empty or only sparse blocks, nothing has to be read
+    return hasFragment() ? fragmentStart : 0;
+  }
+
+  /** Returns whether the tail of the file is stored in a fragment block. */
+  boolean hasFragment() {
+    return fragmentStart >= 0;
+  }
+
+  /**
+   * Returns the size of a data block as stored in the inode, including the flag for uncompressed
+   * blocks. The blocks are stored one after another, starting at {@link #blocksStart}.
+   */
+  long blockSize(int block) {
+    return blockSizes.get(firstBlock + block);
+  }
+
+  /** Returns the length of the stored data of a block size, sparse blocks have none. */
+  static long length(long blockSize) {
+    return blockSize & 0xFFFFFF;
+  }
+
+  /** Returns whether a block or fragment with the given size is compressed. */
+  static boolean isCompressed(long blockSize) {
+    return (blockSize & 0x1000000) == 0;
+  }
+}
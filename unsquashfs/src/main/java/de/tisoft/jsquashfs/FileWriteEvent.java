@@ -0,0 +1,25 @@
+package de.tisoft.jsquashfs;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A JFR event spanning the extraction of a file, from its creation until it is closed. */
+@Name("de.tisoft.jsquashfs.FileWrite")
+@Label("File Write")
+@Description("Extraction of a file, from its creation until all of its data has been written")
+@Category("jsquashfs")
+final class FileWriteEvent extends jdk.jfr.Event {
+  @Label("Path")
+  String path;
+
+  @Label("Size")
+  @DataAmount
+  long size;
+
+  @Label("Copied")
+  @Description("Whether the data was copied from a file with the same data")
+  boolean copied;
+}
@@ -0,0 +1,117 @@
+package de.tisoft.jsquashfs;
+
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongFunction;
+
+/**
+ * Bounded cache for decompressed fragment blocks.
+ *
+ * <p>Every file that has its tail in a fragment holds a reference on the fragment block until its
+ * tail has been written. Referenced blocks are never evicted, so each fragment is decompressed once
+ * while files are pending on it. Once the total size exceeds the budget, the least recently used
+ * blocks without references are dropped. If all cached blocks are referenced and there is no room
+ * for another one, taking a new block waits until a reference is dropped, so the cache never grows
+ * beyond its budget.
+ */
+final class FragmentCache {
+  private static final class Entry {
+    private final CompletableFuture<byte[]> data;
+    private int references;
+
+    private Entry(CompletableFuture<byte[]> data) {
+      this.data = data;
+    }
+  }
+
+  private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final long capacity;
+  private final long blockSize;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param capacity the budget in bytes
+   * @param blockSize the size of a decompressed fragment block, used as the weight of each entry
+   */
+  FragmentCache(long capacity, long blockSize) {
+    this.capacity = capacity;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Returns the fragment block with the given index and takes a reference on it. The loader is
+   * called if the block is not cached. Every call has to be paired with a call to {@link
+   * #release(long)}.
+   *
+   * @throws InterruptedIOException if the thread is interrupted, while waiting for room in the
+   *     cache
+   */
+  synchronized CompletableFuture<byte[]> acquire(
+      long index, LongFunction<CompletableFuture<byte[]>> loader) throws InterruptedIOException {
+    Entry entry = entries.get(index);
+    while (entry == null && !evict(blockSize)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.getMessage());
+      }
+      entry = entries.get(index);
+    }
+    if (entry == null) {
+      misses++;
+      entry = new Entry(loader.apply(index));
+      entries.put(index, entry);
+    } else {
+      hits++;
+    }
+    entry.references++;
+    return entry.data;
+  }
+
+  /** Drops a reference taken by {@link #acquire(long, LongFunction)}. */
+  synchronized void release(long index) {
+    Entry entry = entries.get(index);
+    if (entry != null && --entry.references == 0) {
+      evict(0);
+      notifyAll();
+    }
+  }
+
+  /** Drops all cached blocks, that are not referenced. */
+  synchronized void clear() {
+    entries.values().removeIf(entry -> entry.references == 0);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  /**
+   * Drops the least recently used blocks without references, until the given number of bytes fits
+   * into the budget besides the cached blocks.
+   *
+   * @return whether there is room, an empty cache always takes one block
+   */
+  private boolean evict(long bytes) {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (entries.size() * blockSize + bytes > capacity && iterator.hasNext()) {
+      if (iterator.next().references == 0) {
+        iterator.remove();
+      }
+    }
+    return entries.isEmpty() || entries.size() * blockSize + bytes <= capacity;
+  }
+}
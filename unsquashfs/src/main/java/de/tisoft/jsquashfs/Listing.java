@@ -0,0 +1,286 @@
+package de.tisoft.jsquashfs;
+
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import jnr.posix.Group;
+import jnr.posix.POSIX;
+import jnr.posix.POSIXFactory;
+import jnr.posix.Passwd;
+
+/**
+ * Prints the entries of an image, like the list and info modes of unsquashfs do.
+ *
+ * <p>Listing only walks the directory and inode tables. User and group names are resolved once per
+ * entry of the id table, the date formatter is shared and all lines go through one large buffer,
+ * which is flushed by {@link #close()}.
+ */
+final class Listing implements AutoCloseable {
+  enum Mode {
+    /** Only the path of every entry. */
+    PATHS,
+    /** The path of files and empty directories. */
+    CONCISE,
+    /** The attributes and the path of every entry. */
+    DETAIL,
+    /** The attributes and the path of files and empty directories. */
+    CONCISE_DETAIL
+  }
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final int S_IRUSR = 0000400; /* R for owner */
+  private static final int S_IWUSR = 0000200; /* W for owner */
+  private static final int S_IXUSR = 0000100; /* X for owner */
+
+  private static final int S_IRGRP = 0000040; /* R for group */
+  private static final int S_IWGRP = 0000020; /* W for group */
+  private static final int S_IXGRP = 0000010; /* X for group */
+
+  private static final int S_IROTH = 0000004; /* R for other */
+  private static final int S_IWOTH = 0000002; /* W for other */
+  private static final int S_IXOTH = 0000001; /* X for other */
+
+  private static final int S_ISUID = 0004000; /* set user id on execution */
+  private static final int S_ISGID = 0002000; /* set group id on execution */
+  private static final int S_ISVTX = 0001000; /* save swapped text even after use */
+
+  private static final DateTimeFormatter DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm").withZone(ZoneId.systemDefault());
+
+  private final Squashfs root;
+  private final Mode mode;
+  private final boolean numeric;
+  private final PrintWriter out;
+  private final StringBuilder line = new StringBuilder(256);
+  private String[] users;
+  private String[] groups;
+  private POSIX posix;
+  private long lastMinute = Long.MIN_VALUE;
+  private String lastDate;
+
+  /**
+   * @param root the image
+   * @param mode what to print
+   * @param numeric whether uids and gids are printed as numbers instead of names
+   * @param out the stream to print to
+   */
+  Listing(Squashfs root, Mode mode, boolean numeric, OutputStream out) {
+    this.root = root;
+    this.mode = mode;
+    this.numeric = numeric;
+    this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE));
+  }
+
+  /**
+   * Prints the entries of the directory tree below {@code inodeHeader}, which are selected by the
+   * filter, without reading any file data.
+   */
+  void list(Squashfs.InodeHeader inodeHeader, String path, PathFilter filter) {
+    if (isDirectory(inodeHeader)) {
+      print(inodeHeader, path);
+      for (Squashfs.DirectoryHeader directoryHeader :
+          Metadata.directory(inodeHeader).directoryHeader()) {
+        if (directoryHeader.directoryEntry() == null) {
+          continue;
+        }
+        for (Squashfs.DirectoryEntry directoryEntry : directoryHeader.directoryEntry()) {
+          PathFilter child = filter.child(directoryEntry.name());
+          if (child != null) {
+            list(
+                Metadata.inode(
+                    inodeHeader._root(), directoryHeader.start(), directoryEntry.offset()),
+                path + '/' + directoryEntry.name(),
+                child);
+          }
+        }
+      }
+    } else if (filter.selects()) {
+      print(inodeHeader, path);
+    }
+  }
+
+  /** Prints a single entry, if the mode selects it. */
+  void print(Squashfs.InodeHeader header, String path) {
+    if ((mode == Mode.CONCISE || mode == Mode.CONCISE_DETAIL) && !isFileOrEmpty(header)) {
+      return;
+    }
+    line.setLength(0);
+    if (mode == Mode.DETAIL || mode == Mode.CONCISE_DETAIL) {
+      appendPermissions(line, header);
+      line.append(' ');
+      int start = line.length();
+      line.append(user(header.uid())).append('/').append(group(header.gid()));
+      String size = getSizeString(header);
+      line.append(' ');
+      // right align the size, so the uid/gid and the size take 26 characters
+      for (int i = Math.max(1, 26 - (line.length() - 1 - start)) - size.length(); i > 0; i--) {
+        line.append(' ');
+      }
+      line.append(size).append(' ').append(date(header.mtime())).append(' ');
+    }
+    line.append(path);
+    out.println(line);
+  }
+
+  @Override
+  public void close() {
+    out.flush();
+  }
+
+  static void appendPermissions(StringBuilder p, Squashfs.InodeHeader inodeHeader) {
+    int perms = inodeHeader.permissions();
+    p.append(isDirectory(inodeHeader) ? 'd' : '-');
+    p.append((perms & S_IRUSR) > 0 ? 'r' : '-');
+    p.append((perms & S_IWUSR) > 0 ? 'w' : '-');
+    p.append(execute(perms, S_IXUSR, S_ISUID, 's', 'S'));
+    p.append((perms & S_IRGRP) > 0 ? 'r' : '-');
+    p.append((perms & S_IWGRP) > 0 ? 'w' : '-');
+    p.append(execute(perms, S_IXGRP, S_ISGID, 's', 'S'));
+    p.append((perms & S_IROTH) > 0 ? 'r' : '-');
+    p.append((perms & S_IWOTH) > 0 ? 'w' : '-');
+    p.append(execute(perms, S_IXOTH, S_ISVTX, 't', 'T'));
+  }
+
+  private static char execute(int perms, int execute, int special, char both, char onlySpecial) {
+    if ((perms & execute) > 0 && (perms & special) > 0) {
+      return both;
+    } else if ((perms & special) > 0) {
+      return onlySpecial;
+    } else if ((perms & execute) > 0) {
+      return 'x';
+    } else {
+      return '-';
+    }
+  }
+
+  private String user(int index) {
+    if (users == null) {
+      users = new String[idCount()];
+    }
+    if (users[index] == null) {
+      long uid = id(index);
+      users[index] =
+          numeric
+              ? String.valueOf(uid)
+              : Optional.ofNullable(posix().getpwuid((int) uid))
+                  .map(Passwd::getLoginName)
+                  .orElse(String.valueOf(uid));
+    }
+    return users[index];
+  }
+
+  private String group(int index) {
+    if (groups == null) {
+      groups = new String[idCount()];
+    }
+    if (groups[index] == null) {
+      long gid = id(index);
+      groups[index] =
+          numeric
+              ? String.valueOf(gid)
+              : Optional.ofNullable(posix().getgrgid((int) gid))
+                  .map(Group::getName)
+                  .orElse(String.valueOf(gid));
+    }
+    return groups[index];
+  }
+
+  private int idCount() {
+    return root.superblock().idCount();
+  }
+
+  private long id(int index) {
+    return root.uidGidEntries().uidGidEntries().get(index).uidGid();
+  }
+
+  private POSIX posix() {
+    if (posix == null) {
+      posix = POSIXFactory.getNativePOSIX();
+    }
+    return posix;
+  }
+
+  /** Formats the modification time. Entries usually share it, so the last one is reused. */
+  private String date(long mtime) {
+    long minute = Math.floorDiv(mtime, 60);
+    if (minute != lastMinute) {
+      lastDate = DATE_FORMAT.format(Instant.ofEpochSecond(mtime));
+      lastMinute = minute;
+    }
+    return lastDate;
+  }
+
+  /** Returns the apparent size, followed by the allocated size for files with holes. */
+  private static String getSizeString(Squashfs.InodeHeader header) {
+    long size = getSize(header);
+    long sparse = getSparse(header);
+    if (sparse == 0) {
+      return String.valueOf(size);
+    }
+    return size + " (" + (size - sparse) + " allocated)";
+  }
+
+  /** Returns the number of bytes of a file, that are stored as sparse blocks. */
+  private static long getSparse(Squashfs.InodeHeader header) {
+    switch (header.type()) {
+      case BASIC_FILE:
+        // basic files don't record it, so it is calculated from the sizes of the blocks
+        Squashfs.InodeHeaderBasicFile file = (Squashfs.InodeHeaderBasicFile) header.header();
+        long blockSize = header._root().superblock().blockSize();
+        long sparse = 0;
+        for (int i = 0; i < file.blockSizes().size(); i++) {
+          if ((file.blockSizes().get(i) & 0xFFFFFF) == 0) {
+            sparse += Math.min(blockSize, file.fileSize() - i * blockSize);
+          }
+        }
+        return sparse;
+      case EXTENDED_FILE:
+        return ((Squashfs.InodeHeaderExtendedFile) header.header()).sparse();
+      default:
+        return 0;
+    }
+  }
+
+  private static long getSize(Squashfs.InodeHeader header) {
+    switch (header.type()) {
+      case BASIC_DIRECTORY:
+        return ((Squashfs.InodeHeaderBasicDirectory) header.header()).fileSize();
+      case EXTENDED_DIRECTORY:
+        return ((Squashfs.InodeHeaderExtendedDirectory) header.header()).fileSize();
+      case BASIC_FILE:
+        return ((Squashfs.InodeHeaderBasicFile) header.header()).fileSize();
+      case EXTENDED_FILE:
+        return ((Squashfs.InodeHeaderExtendedFile) header.header()).fileSize();
+      default:
+        throw new IllegalArgumentException("Unsupported type: " + header.type());
+    }
+  }
+
+  private static boolean isFileOrEmpty(Squashfs.InodeHeader inodeHeader) {
+    if (inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY) {
+      Squashfs.InodeHeaderBasicDirectory directory =
+          (Squashfs.InodeHeaderBasicDirectory) inodeHeader.header();
+      // the size of an empty directory only accounts for the implicit "." and ".." entries
+      return directory.fileSize() <= 3;
+    } else if (inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
+      Squashfs.InodeHeaderExtendedDirectory directory =
+          (Squashfs.InodeHeaderExtendedDirectory) inodeHeader.header();
+      return directory.fileSize() <= 3;
+    } else {
+      return true;
+    }
+  }
+
+  private static boolean isDirectory(Squashfs.InodeHeader inodeHeader) {
+    return inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
+        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY;
+  }
+}
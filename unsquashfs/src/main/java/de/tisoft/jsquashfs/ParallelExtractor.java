@@ -0,0 +1,633 @@
+package de.tisoft.jsquashfs;
+
+import de.tisoft.jsquashfs.parser.Decompress;
+import de.tisoft.jsquashfs.parser.MappedKaitaiStream;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Extracts file data in a pipeline of three stages, so storage and processors are busy at the same
+ * time.
+ *
+ * <ol>
+ *   <li>A reader thread fetches the compressed blocks from storage ahead of their decompression.
+ *   <li>A work-stealing pool decompresses them.
+ *   <li>A writer thread writes the decompressed blocks into the output files.
+ * </ol>
+ *
+ * <p>The parser is not thread safe, so the directory walk and the lookup of the compressed blocks
+ * stay on the calling thread. The number of blocks between the lookup and the write is bounded by
+ * the data queue, so the calling thread blocks once the later stages fall behind. Decompressed
+ * fragment blocks are shared through a bounded {@link FragmentCache}. The number of files, that are
+ * open for writing, is bounded as well, as files with only a fragment take no data block.
+ */
+final class ParallelExtractor implements AutoCloseable {
+  /** A file, that has been scheduled for extraction. */
+  private static final class Extracted {
+    private final File file;
+    private final CompletableFuture<Void> done;
+
+    private Extracted(File file, CompletableFuture<Void> done) {
+      this.file = file;
+      this.done = done;
+    }
+  }
+
+  /**
+   * The location of the data of a file, files with the same key are duplicates. The block sizes are
+   * compared one by one, their hash only serves as the hash code.
+   */
+  private static final class Key {
+    private final FileInode file;
+    private final int hash;
+
+    private Key(FileInode file) {
+      this.file = file;
+      int blocks = 1;
+      for (int i = 0; i < file.blockCount; i++) {
+        blocks = 31 * blocks + Long.hashCode(file.blockSize(i));
+      }
+      this.hash = Long.hashCode(file.blocksStart) * 31 + blocks;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      FileInode other = ((Key) o).file;
+      if (file.blocksStart != other.blocksStart
+          || file.fileSize != other.fileSize
+          || file.fragIndex != other.fragIndex
+          || file.fragmentOffset != other.fragmentOffset
+          || file.blockCount != other.blockCount) {
+        return false;
+      }
+      for (int i = 0; i < file.blockCount; i++) {
+        if (file.blockSize(i) != other.blockSize(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /** The default number of files, that are open for writing at the same time. */
+  static final int OPEN_FILES = 256;
+
+  private static final int PAGE_SIZE = 4096;
+
+  private final Squashfs root;
+  private final int blockSize;
+  private final boolean replace;
+  private final ExecutorService reader = Executors.newSingleThreadExecutor(daemon("reader"));
+  private final ForkJoinPool pool;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(daemon("writer"));
+  private final Semaphore inFlight;
+  private final Semaphore openFiles;
+  private final int maxOpenFiles;
+  private final AtomicInteger peakOpenFiles = new AtomicInteger();
+  private final FragmentCache fragments;
+  // only the files at the current data offset, see advance()
+  private final Map<Long, Extracted> links = new HashMap<>();
+  private final Map<Key, Extracted> extracted = new HashMap<>();
+  private long offset = -1;
+  // guarded by this
+  private int running;
+  private Throwable failure;
+  private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+  private final LongAdder files = new LongAdder();
+  private final LongAdder unchanged = new LongAdder();
+  private final LongAdder written = new LongAdder();
+  private volatile byte touched;
+
+  /**
+   * @param root the image
+   * @param processors the number of threads used for decompression
+   * @param dataQueueSize the budget in bytes for data blocks between the reader and the writer
+   * @param fragmentCacheSize the budget in bytes for decompressed fragment blocks
+   * @param openFiles the number of files, that are open for writing at the same time
+   * @param replace whether files are written to a temporary file, which is then renamed over the
+   *     existing file, instead of being written in place
+   */
+  ParallelExtractor(
+      Squashfs root,
+      int processors,
+      long dataQueueSize,
+      long fragmentCacheSize,
+      int openFiles,
+      boolean replace) {
+    this.root = root;
+    this.blockSize = (int) root.superblock().blockSize();
+    this.replace = replace;
+    this.pool = new ForkJoinPool(processors);
+    // at least one block per processor, so all of them can be kept busy
+    this.inFlight = new Semaphore((int) Math.max(processors, dataQueueSize / blockSize));
+    this.fragments = new FragmentCache(fragmentCacheSize, blockSize);
+    this.maxOpenFiles = Math.max(1, openFiles);
+    this.openFiles = new Semaphore(maxOpenFiles);
+  }
+
+  /**
+   * Schedules the extraction of a file. The file is created right away, its contents are written
+   * asynchronously. Files have to be passed in the order of their {@link FileInode#dataOffset()}.
+   *
+   * <p>Further links to an inode, that has already been extracted, become hard links. Files with
+   * the same data as an already extracted file, which mksquashfs stores only once, are copied from
+   * that file instead of being decompressed again.
+   *
+   * <p>When replacing files, the data is written to a temporary file next to the destination, which
+   * is renamed over the existing file once it is complete. The existing file is never modified, so
+   * its other hard links keep their contents and running programs keep their mapping.
+   */
+  void extractFile(File dest, FileInode file) throws IOException {
+    advance(file);
+    if (file.linkCount > 1) {
+      Extracted target = links.get(file.inodeNumber);
+      if (target != null) {
+        // the target has to be at its final path first
+        track(target.done.thenRunAsync(() -> link(dest, target.file), writer));
+        return;
+      }
+    }
+    Key key = key(file);
+    Extracted source = key != null ? extracted.get(key) : null;
+    FileWriteEvent event = new FileWriteEvent();
+    event.begin();
+    File path = replace ? new File(dest.getParentFile(), ".jsquashfs-" + file.inodeNumber) : dest;
+    CompletableFuture<Void> done;
+    if (source != null) {
+      done = copy(path, file, source);
+    } else {
+      done = extract(path, file);
+    }
+    // set once the data is complete, so a file that was only partially written counts as changed
+    done = done.thenRun(() -> setLastModified(path, file.mtime));
+    if (replace) {
+      done =
+          done.thenRun(() -> move(path, dest))
+              .whenComplete(
+                  (result, throwable) -> {
+                    if (throwable != null) {
+                      path.delete();
+                    }
+                  });
+    }
+    if (file.linkCount > 1) {
+      links.put(file.inodeNumber, new Extracted(dest, done));
+    }
+    if (source == null && key != null) {
+      extracted.put(key, new Extracted(dest, done));
+    }
+    files.increment();
+    track(
+        done.whenComplete(
+            (result, throwable) -> {
+              event.end();
+              if (event.shouldCommit()) {
+                event.path = dest.getPath();
+                event.size = file.fileSize;
+                event.copied = source != null;
+                event.commit();
+              }
+            }));
+  }
+
+  /**
+   * Records a file, that is already up to date in the destination. Further links to its inode
+   * become hard links to it, and files with the same data are copied from it. Like {@link
+   * #extractFile(File, FileInode)}, files have to be passed in the order of their data.
+   */
+  void unchanged(File dest, FileInode file) {
+    advance(file);
+    if (file.linkCount > 1) {
+      links.putIfAbsent(
+          file.inodeNumber, new Extracted(dest, CompletableFuture.completedFuture(null)));
+    }
+    Key key = key(file);
+    if (key != null) {
+      extracted.putIfAbsent(key, new Extracted(dest, CompletableFuture.completedFuture(null)));
+    }
+    unchanged.increment();
+  }
+
+  /**
+   * Forgets the files of the previous data offset. Links to the same inode and files with the same
+   * data start at the same offset, so they are passed one after another and only the files at the
+   * current offset have to be kept.
+   */
+  private void advance(FileInode file) {
+    long dataOffset = file.dataOffset();
+    if (dataOffset != offset) {
+      links.clear();
+      extracted.clear();
+      offset = dataOffset;
+    }
+  }
+
+  /** Counts a scheduled file until it is complete, the first failure is kept for await(). */
+  private void track(CompletableFuture<Void> future) {
+    synchronized (this) {
+      running++;
+    }
+    future.whenComplete(
+        (result, throwable) -> {
+          synchronized (this) {
+            if (throwable != null && failure == null) {
+              failure = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            }
+            running--;
+            notifyAll();
+          }
+        });
+  }
+
+  /**
+   * Identical data is stored once, so files sharing the location of their data are duplicates.
+   *
+   * <p>Files without any stored block or fragment have no data to share. Their blocks start where
+   * the data of the next file starts, so they are never used as a source. Sparse blocks take no
+   * space either, so the sizes of the blocks are part of the key as well.
+   */
+  private static Key key(FileInode file) {
+    boolean stored = file.hasFragment();
+    for (int i = 0; i < file.blockCount && !stored; i++) {
+      stored = FileInode.length(file.blockSize(i)) != 0;
+    }
+    return stored ? new Key(file) : null;
+  }
+
+  /**
+   * Decompresses the data of a file, every block passes through the three stages. Sparse blocks are
+   * skipped, they are left as holes.
+   */
+  private CompletableFuture<Void> extract(File dest, FileInode file) throws IOException {
+    FileChannel channel = open(dest, file.fileSize);
+    List<CompletableFuture<Void>> writes = new ArrayList<>();
+    long position = 0;
+    long start = file.blocksStart;
+    for (int i = 0; i < file.blockCount; i++) {
+      long size = file.blockSize(i);
+      int length = (int) FileInode.length(size);
+      if (length == 0) {
+        // sparse block, the file already has its final length, so skipping it leaves a hole
+        position += blockSize;
+        continue;
+      }
+      long blockPosition = position;
+      long remaining = file.fileSize - position;
+      // the lookup has to happen on the calling thread, as the underlying stream may be shared
+      ByteBuffer raw = readRaw(start, length);
+      // all blocks but the last are full
+      Decompress decompress = decompress(size, i != file.blockCount - 1);
+      acquire(inFlight);
+      writes.add(
+          CompletableFuture.supplyAsync(() -> prefetch(raw), reader)
+              .thenApplyAsync(
+                  data -> {
+                    byte[] buffer = buffer();
+                    int decoded = decompress.decode(data, buffer, 0);
+                    // last block might be not fully used, we may need to cap the length
+                    return ByteBuffer.wrap(buffer, 0, (int) Math.min(decoded, remaining));
+                  },
+                  pool)
+              .thenAcceptAsync(
+                  buffer -> {
+                    write(channel, buffer, blockPosition);
+                    buffers.offer(buffer.array());
+                  },
+                  writer)
+              .whenComplete((result, throwable) -> inFlight.release()));
+      position += blockSize;
+      start += length;
+    }
+    if (file.hasFragment()) {
+      long fragmentPosition = Math.min(position, file.fileSize);
+      int length = (int) (file.fileSize - fragmentPosition);
+      long fragIndex = file.fragIndex;
+      long fragmentStart = file.fragmentStart;
+      long fragmentSize = file.fragmentSize;
+      int fragmentOffset = (int) file.fragmentOffset;
+      writes.add(
+          fragments
+              .acquire(fragIndex, index -> decode(fragmentStart, fragmentSize))
+              .thenAcceptAsync(
+                  bytes ->
+                      write(
+                          channel,
+                          ByteBuffer.wrap(bytes, fragmentOffset, length),
+                          fragmentPosition),
+                  writer)
+              .whenComplete((result, throwable) -> fragments.release(fragIndex)));
+    }
+    return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]))
+        .whenComplete((result, throwable) -> close(channel));
+  }
+
+  /**
+   * Copies the data of a duplicate file from the file, that has been extracted from the same data.
+   * The copy is done in the kernel where possible and leaves the same holes as the original.
+   */
+  private CompletableFuture<Void> copy(File dest, FileInode file, Extracted source)
+      throws IOException {
+    FileChannel channel = open(dest, file.fileSize);
+    List<long[]> ranges = dataRanges(file);
+    return source
+        .done
+        .thenRunAsync(
+            () -> {
+              try (FileChannel in = FileChannel.open(source.file.toPath())) {
+                for (long[] range : ranges) {
+                  transfer(in, channel, range[0], range[1]);
+                }
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            },
+            writer)
+        .whenComplete((result, throwable) -> close(channel));
+  }
+
+  /** Returns the start and end of all ranges of a file, that are not sparse. */
+  private List<long[]> dataRanges(FileInode file) {
+    List<long[]> ranges = new ArrayList<>();
+    long position = 0;
+    for (int i = 0; i < file.blockCount; i++) {
+      long end = Math.min(position + blockSize, file.fileSize);
+      if (FileInode.length(file.blockSize(i)) != 0) {
+        if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == position) {
+          ranges.get(ranges.size() - 1)[1] = end;
+        } else {
+          ranges.add(new long[] {position, end});
+        }
+      }
+      position = end;
+    }
+    if (position < file.fileSize) {
+      // the tail in the fragment
+      if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == position) {
+        ranges.get(ranges.size() - 1)[1] = file.fileSize;
+      } else {
+        ranges.add(new long[] {position, file.fileSize});
+      }
+    }
+    return ranges;
+  }
+
+  private void transfer(FileChannel in, FileChannel out, long start, long end) throws IOException {
+    long position = start;
+    out.position(position);
+    while (position < end) {
+      long transferred = in.transferTo(position, end - position, out);
+      if (transferred <= 0) {
+        throw new EOFException("Unexpected end of " + in);
+      }
+      position += transferred;
+      written.add(transferred);
+    }
+  }
+
+  /** Returns the number of files, that have been extracted, without hard links. */
+  long files() {
+    return files.sum();
+  }
+
+  /** Returns the number of files, that were already up to date and have not been written. */
+  long unchangedFiles() {
+    return unchanged.sum();
+  }
+
+  /** Returns the number of bytes written, holes are not counted. */
+  long bytesWritten() {
+    return written.sum();
+  }
+
+  /** Returns the number of files, that were open for writing at the same time at most. */
+  int peakOpenFiles() {
+    return peakOpenFiles.get();
+  }
+
+  /** Returns the number of files, that may be open for writing at the same time. */
+  int maxOpenFiles() {
+    return maxOpenFiles;
+  }
+
+  FragmentCache fragmentCache() {
+    return fragments;
+  }
+
+  /** Waits until all scheduled files have been written. */
+  synchronized void await() throws IOException {
+    try {
+      while (running > 0) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    Throwable throwable = failure;
+    failure = null;
+    if (throwable instanceof UncheckedIOException) {
+      throw ((UncheckedIOException) throwable).getCause();
+    } else if (throwable != null) {
+      throw new CompletionException(throwable);
+    }
+  }
+
+  @Override
+  public void close() {
+    reader.shutdown();
+    pool.shutdown();
+    writer.shutdown();
+    fragments.clear();
+    buffers.clear();
+  }
+
+  /**
+   * Creates the file with its final length. Extending the file does not allocate any space, so all
+   * ranges that are not written stay holes.
+   */
+  private static FileChannel create(File dest, long fileSize) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(dest, "rw");
+    try {
+      // drop the contents of an existing file first, so they do not show through the holes
+      file.setLength(0);
+      file.setLength(fileSize);
+      return file.getChannel();
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private CompletableFuture<byte[]> decode(long start, long size) {
+    // the lookup has to happen on the calling thread, as the underlying stream may be shared
+    ByteBuffer raw = readRaw(start, (int) FileInode.length(size));
+    Decompress decompress = decompress(size, false);
+    return CompletableFuture.supplyAsync(() -> prefetch(raw), reader)
+        .thenApplyAsync(decompress::decode, pool);
+  }
+
+  /**
+   * Touches every page of a mapped block, so it is read from storage by the reader thread and not
+   * while it is decompressed. Blocks that were copied from the stream are already in memory.
+   */
+  private ByteBuffer prefetch(ByteBuffer raw) {
+    if (raw.isDirect() && raw.limit() > 0) {
+      byte sum = raw.get(raw.limit() - 1);
+      for (int i = 0; i < raw.limit(); i += PAGE_SIZE) {
+        sum += raw.get(i);
+      }
+      // keeps the reads from being optimized away
+      touched = sum;
+    }
+    return raw;
+  }
+
+  /**
+   * @param size the size of the block as stored in the inode or the fragment table
+   * @param padded whether the decompressed block fills the whole block size
+   */
+  private Decompress decompress(long size, boolean padded) {
+    return new Decompress(
+        FileInode.isCompressed(size), root.superblock().compressor(), blockSize, padded);
+  }
+
+  /**
+   * Returns a block sized buffer. Buffers are handed back once their block has been written, so
+   * there are never more than the blocks in flight.
+   */
+  private byte[] buffer() {
+    byte[] buffer = buffers.poll();
+    if (buffer == null || buffer.length < blockSize) {
+      buffer = new byte[blockSize];
+    }
+    return buffer;
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, "unsquashfs-" + name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** Returns the compressed block, which is a view of the mapping for memory mapped images. */
+  private ByteBuffer readRaw(long start, int length) {
+    return MappedKaitaiStream.read(root._io(), start, length);
+  }
+
+  /**
+   * Creates a file for writing, once another file has been closed, if too many are open. The file
+   * has to be closed with {@link #close(FileChannel)}.
+   */
+  private FileChannel open(File dest, long fileSize) throws IOException {
+    acquire(openFiles);
+    peakOpenFiles.accumulateAndGet(maxOpenFiles - openFiles.availablePermits(), Math::max);
+    try {
+      return create(dest, fileSize);
+    } catch (IOException | RuntimeException e) {
+      openFiles.release();
+      throw e;
+    }
+  }
+
+  private static void acquire(Semaphore semaphore) throws InterruptedIOException {
+    try {
+      semaphore.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+
+  private void write(FileChannel channel, ByteBuffer buffer, long position) {
+    try {
+      while (buffer.hasRemaining()) {
+        int length = channel.write(buffer, position);
+        position += length;
+        written.add(length);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void link(File dest, File target) {
+    try {
+      Files.deleteIfExists(dest.toPath());
+      Files.createLink(dest.toPath(), target.toPath());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Renames a complete file over the destination, atomically where the file system allows it. */
+  private static void move(File source, File dest) {
+    try {
+      try {
+        Files.move(
+            source.toPath(),
+            dest.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void setLastModified(File dest, long mtime) {
+    try {
+      Files.setLastModifiedTime(dest.toPath(), FileTime.from(mtime, TimeUnit.SECONDS));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void close(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      openFiles.release();
+    }
+  }
+}
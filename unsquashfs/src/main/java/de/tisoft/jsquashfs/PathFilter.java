@@ -0,0 +1,88 @@
+package de.tisoft.jsquashfs;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects the entries to extract from the paths given on the command line.
+ *
+ * <p>Every path is split into its components, which may contain glob wildcards. The filter is
+ * advanced one directory entry at a time during the walk, before the inode of the entry is read.
+ * Entries that can't match are skipped, so their inodes and directories are never decoded. A
+ * directory that matches a path completely is extracted with everything below it.
+ */
+final class PathFilter {
+  /** Selects every entry. */
+  static final PathFilter ALL = new PathFilter(List.of(), false);
+
+  private final List<List<PathMatcher>> paths;
+  private final boolean excludes;
+
+  private PathFilter(List<List<PathMatcher>> paths, boolean excludes) {
+    this.paths = paths;
+    this.excludes = excludes;
+  }
+
+  /**
+   * @param paths the paths to extract, or to exclude, relative to the root of the image
+   * @param excludes whether the paths are excluded instead of extracted
+   */
+  static PathFilter of(String[] paths, boolean excludes) {
+    if (paths == null || paths.length == 0) {
+      return ALL;
+    }
+    List<List<PathMatcher>> matchers = new ArrayList<>();
+    for (String path : paths) {
+      List<PathMatcher> components = new ArrayList<>();
+      for (String component : path.split("/")) {
+        if (!component.isEmpty() && !component.equals(".")) {
+          components.add(glob(component));
+        }
+      }
+      if (components.isEmpty()) {
+        // the root itself, which is the same as all of its entries
+        components.add(glob("*"));
+      }
+      matchers.add(components);
+    }
+    return new PathFilter(matchers, excludes);
+  }
+
+  /**
+   * Returns the filter for an entry of the directory, this filter applies to, or {@code null} if
+   * the entry is not extracted.
+   */
+  PathFilter child(String name) {
+    if (paths.isEmpty()) {
+      return this;
+    }
+    List<List<PathMatcher>> remaining = new ArrayList<>();
+    for (List<PathMatcher> path : paths) {
+      if (path.get(0).matches(Paths.get(name))) {
+        if (path.size() == 1) {
+          return excludes ? null : ALL;
+        }
+        remaining.add(path.subList(1, path.size()));
+      }
+    }
+    if (remaining.isEmpty()) {
+      return excludes ? ALL : null;
+    }
+    return new PathFilter(remaining, excludes);
+  }
+
+  /**
+   * Returns whether a file, this filter applies to, is extracted. Files that only match the start
+   * of a path to extract are not, while files that only match the start of a path to exclude are.
+   */
+  boolean selects() {
+    return paths.isEmpty() || excludes;
+  }
+
+  private static PathMatcher glob(String pattern) {
+    return FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+  }
+}
@@ -3,24 +3,40 @@ package de.tisoft.jsquashfs;
 import static org.slieb.throwables.ConsumerWithThrowable.aConsumerThatUnsafelyThrowsUnchecked;
 
 import de.tisoft.jsquashfs.compression.lzo.LzoAvailabilityCheck;
+import de.tisoft.jsquashfs.image.SquashfsImage;
+import de.tisoft.jsquashfs.parser.DecompressStatistics;
+import de.tisoft.jsquashfs.parser.MappedKaitaiStream;
+import de.tisoft.jsquashfs.parser.MetablockCache;
+import de.tisoft.jsquashfs.parser.Metadata;
 import de.tisoft.jsquashfs.parser.Squashfs;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
-import jnr.posix.Group;
-import jnr.posix.POSIXFactory;
-import jnr.posix.Passwd;
 import picocli.AutoComplete;
 import picocli.CommandLine;
 
@@ -97,10 +113,11 @@ public class Unsquashfs implements Runnable {
       description = "Print version information and exit.")
   private boolean versionRequested;
 
-  @CommandLine.Parameters(paramLabel = "FILESYSTEM", hideParamSyntax = true)
+  @CommandLine.Parameters(index = "0", paramLabel = "FILESYSTEM", hideParamSyntax = true)
   private String filesystem;
 
   @CommandLine.Parameters(
+      index = "1..*",
       paramLabel = "[files to extract or exclude (with -excludes) or cat (with -cat )]",
       hideParamSyntax = true)
   private String[] files;
@@ -113,6 +130,85 @@ public class Unsquashfs implements Runnable {
       defaultValue = "squashfs-root")
   private File dest;
 
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+  private int processors = Runtime.getRuntime().availableProcessors();
+
+  @CommandLine.Option(
+      names = {"-p", "-processors"},
+      paramLabel = "number",
+      arity = "1",
+      description = "use <number> processors. By default will use number of processors available")
+  private void setProcessors(int processors) {
+    if (processors < 1) {
+      throw new CommandLine.ParameterException(
+          spec.commandLine(), "Invalid number of processors: " + processors);
+    }
+    this.processors = processors;
+  }
+
+  @CommandLine.Option(
+      names = {"-da", "-data-queue"},
+      paramLabel = "size",
+      arity = "1",
+      description = "set data queue to <size> Mbytes. Default ${DEFAULT-VALUE} Mbytes",
+      defaultValue = "256")
+  private int dataQueue;
+
+  @CommandLine.Option(
+      names = {"-fr", "-fragment-queue"},
+      paramLabel = "size",
+      arity = "1",
+      description = "set fragment cache to <size> Mbytes. Default ${DEFAULT-VALUE} Mbytes",
+      defaultValue = "256")
+  private int fragmentQueue;
+
+  @CommandLine.Option(
+      names = {"-mem"},
+      paramLabel = "size",
+      arity = "1",
+      description =
+          "limit all caches, buffers and files in flight to <size> Mbytes together, instead of -data-queue and -fragment-queue. Fewer processors are used and fewer files are open, if they do not fit. The list of files to extract, about 100 bytes and the name per file, is not included")
+  private int memory;
+
+  @CommandLine.Option(
+      names = {"-ck", "-check"},
+      description =
+          "check the filesystem by decompressing everything, but don't extract files. Reports corrupt blocks")
+  private boolean check;
+
+  @CommandLine.Option(
+      names = {"-excludes"},
+      description = "treat files on command line as exclude files")
+  private boolean excludes;
+
+  @CommandLine.Option(
+      names = {"-cat"},
+      description = "cat the files on the command line to stdout")
+  private boolean cat;
+
+  @CommandLine.Option(
+      names = {"-u", "-update"},
+      description =
+          "only write files, whose size or modification time differ from the existing file in the destination")
+  private boolean update;
+
+  @CommandLine.Option(
+      names = {"-uv", "-update-verify"},
+      description =
+          "with -update, compare the contents of files, whose size matches but whose modification time differs, and only write them, if their contents differ")
+  private boolean updateVerify;
+
+  @CommandLine.Option(
+      names = {"-ud", "-update-delete"},
+      description = "with -update, also delete files and directories, that are not in the image")
+  private boolean updateDelete;
+
+  @CommandLine.Option(
+      names = {"-st", "-stats"},
+      description = "print statistics about reading, decompressing and writing after extraction")
+  private boolean stats;
+
   @CommandLine.Option(
       names = {"-i", "-info"},
       description = "print files as they are extracted")
@@ -158,6 +254,23 @@ public class Unsquashfs implements Runnable {
       description = "Show this help message and exit.")
   private boolean helpRequested;
 
+  // 64 MiB of decompressed metadata
+  private static final int MAX_PRELOADED_METABLOCKS = 8192;
+  private static final int METABLOCK_SIZE = 8192;
+  private static final long MEGABYTE = 1024L * 1024L;
+  // the channel, the scheduled writes and the fragment tail of a file in flight, estimated
+  // generously
+  private static final int OPEN_FILE_SIZE = 4096;
+
+  private ParallelExtractor extractor;
+  private Listing listing;
+  private ExtractionPlan plan;
+  private BlockSizes blockSizes;
+  // the files in the image and in the destination, as compared by -update-verify
+  private SquashfsImage image;
+  private ByteBuffer expected;
+  private ByteBuffer actual;
+
   public static void main(String[] args) {
     CommandLine cmd = new CommandLine(new Unsquashfs());
     CommandLine gen = cmd.getSubcommands().get("generate-completion");
@@ -169,278 +282,417 @@ public class Unsquashfs implements Runnable {
   @Override
   public void run() {
     try {
-      Squashfs squashfs = Squashfs.fromFile(filesystem);
-
-      squashfs.superblock().versionMajor();
-
-      Map<Long, Squashfs.InodeHeader> inodes =
-          squashfs.inodeTable().inodes().inodeHeader().stream()
-              .collect(Collectors.toMap(Squashfs.InodeHeader::inodeNumber, Function.identity()));
+      if (cat) {
+        cat();
+        return;
+      }
 
-      Squashfs.InodeHeader rootInode =
-          squashfs.superblock().rootInodeRef().inodeTable().inodeHeader();
+      Squashfs squashfs = new Squashfs(new MappedKaitaiStream(Paths.get(filesystem)));
 
-      recurse(inodes, rootInode, dest);
+      squashfs.superblock().versionMajor();
+      try {
+        unsquash(squashfs);
+      } finally {
+        Metadata.release(squashfs);
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private void printFileName(Squashfs.InodeHeader header, File file) {
-    if (list || info || (listConcise && isFileOrEmpty(header))) {
-      System.out.println(file.toPath());
-    } else if (listDetail
-        || infoDetail
-        || listNumeric
-        || (listConciseDetail && isFileOrEmpty(header))) {
-      String uid_gid;
-      long uid = header._root().uidGidEntries().uidGidEntries().get(header.uid()).uidGid();
-      long gid = header._root().uidGidEntries().uidGidEntries().get(header.gid()).uidGid();
-      if (listNumeric) {
-        uid_gid = uid + "/" + gid;
-      } else {
-        uid_gid =
-            Optional.ofNullable(POSIXFactory.getNativePOSIX().getpwuid((int) uid))
-                    .map(Passwd::getLoginName)
-                    .orElse(String.valueOf(uid))
-                + "/"
-                + Optional.ofNullable(POSIXFactory.getNativePOSIX().getgrgid((int) gid))
-                    .map(Group::getName)
-                    .orElse(String.valueOf(gid));
+  private void unsquash(Squashfs squashfs) throws IOException {
+    long blockSize = squashfs.superblock().blockSize();
+    if (memory > 0) {
+      MetablockCache.of(squashfs)
+          .setCapacity(
+              (int) Math.max(1, Math.min(Integer.MAX_VALUE, metadataBudget() / METABLOCK_SIZE)));
+    }
+
+    if (check) {
+      // the whole image is decompressed, but nothing is written
+      try (Check c =
+          new Check(squashfs, processors(dataBudget() / blockSize / Check.BLOCKS_PER_PROCESSOR))) {
+        int errors = c.check(System.out);
+        if (errors > 0) {
+          throw new IOException(errors + " errors found in " + filesystem);
+        }
       }
-      System.out.println(
-          getPermissionString(header)
-              + " "
-              + uid_gid
-              + " "
-              + String.format("%" + Math.max(1, 26 - uid_gid.length()) + "s", getSize(header))
-              + " "
-              + new SimpleDateFormat("yyyy-MM-dd hh:mm").format(new Date(header.mtime() * 1000L))
-              + " "
-              + file.toPath());
+      return;
+    }
+
+    preloadMetadata(squashfs);
+    if (update && updateVerify) {
+      image = SquashfsImage.of(squashfs);
+      expected = ByteBuffer.allocate((int) blockSize);
+      actual = ByteBuffer.allocate((int) blockSize);
+    }
+    Squashfs.InodeHeader rootInode =
+        Metadata.inode(squashfs, squashfs.superblock().rootInodeRef().raw());
+
+    Listing.Mode mode = listingMode();
+    if (list || listDetail || listNumeric || listConcise || listConciseDetail) {
+      // listing only needs the directory and inode tables, no file is read or written
+      try (Listing l = new Listing(squashfs, mode, listNumeric, System.out)) {
+        l.list(rootInode, dest.getPath(), PathFilter.of(files, excludes));
+      }
+      return;
     }
-  }
 
-  private long getSize(Squashfs.InodeHeader header) {
-    switch (header.type()) {
-      case BASIC_DIRECTORY:
-        return ((Squashfs.InodeHeaderBasicDirectory) header.header()).fileSize();
-      case EXTENDED_DIRECTORY:
-        return ((Squashfs.InodeHeaderExtendedDirectory) header.header()).fileSize();
-      case BASIC_FILE:
-        return ((Squashfs.InodeHeaderBasicFile) header.header()).fileSize();
-      case EXTENDED_FILE:
-        return ((Squashfs.InodeHeaderExtendedFile) header.header()).fileSize();
-      default:
-        throw new IllegalArgumentException("Unsupported type: " + header.type());
+    // the statistics are global, they are switched on for this run only
+    boolean statistics = DecompressStatistics.isEnabled();
+    if (stats) {
+      DecompressStatistics.setEnabled(true);
     }
+    try {
+      long startTime = System.nanoTime();
+      Map<String, DecompressStatistics.Codec> before = DecompressStatistics.snapshot();
+      try (Listing l = mode != null ? new Listing(squashfs, mode, false, System.out) : null;
+          ParallelExtractor parallelExtractor =
+              new ParallelExtractor(
+                  squashfs,
+                  processors(dataBudget() / blockSize),
+                  dataBudget(),
+                  fragmentBudget(),
+                  openFiles(),
+                  update)) {
+        listing = l;
+        extractor = parallelExtractor;
+        blockSizes = new BlockSizes();
+        plan = new ExtractionPlan(blockSizes);
+        recurse(rootInode, dest, PathFilter.of(files, excludes));
+        // the plan has everything needed for the extraction, the metadata is not read anymore
+        MetablockCache.of(squashfs).clear();
+        plan.extract(extractor);
+        extractor.await();
+        if (stats) {
+          printStatistics(squashfs, parallelExtractor, before, System.nanoTime() - startTime);
+        }
+      }
+    } finally {
+      DecompressStatistics.setEnabled(statistics);
+    }
+  }
+
+  /**
+   * The share of the memory budget for decompressed metablocks. Without a budget, the metablock
+   * cache keeps its own size.
+   */
+  private long metadataBudget() {
+    return memory * MEGABYTE / 8;
+  }
+
+  /** The budget for decompressed fragment blocks in bytes, a quarter of the memory budget. */
+  private long fragmentBudget() {
+    return memory > 0 ? memory * MEGABYTE / 4 : fragmentQueue * MEGABYTE;
   }
 
-  private static final int S_IRUSR = 0000400; /* R for owner */
-  private static final int S_IWUSR = 0000200; /* W for owner */
-  private static final int S_IXUSR = 0000100; /* X for owner */
+  /** The share of the memory budget for the files, that are open for writing. */
+  private long fileBudget() {
+    return memory * MEGABYTE / 16;
+  }
 
-  private static final int S_IRGRP = 0000040; /* R for group */
-  private static final int S_IWGRP = 0000020; /* W for group */
-  private static final int S_IXGRP = 0000010; /* X for group */
+  /** Returns the number of files, that may be open for writing at the same time. */
+  private int openFiles() {
+    return memory > 0
+        ? (int) Math.max(1, Math.min(ParallelExtractor.OPEN_FILES, fileBudget() / OPEN_FILE_SIZE))
+        : ParallelExtractor.OPEN_FILES;
+  }
 
-  private static final int S_IROTH = 0000004; /* R for other */
-  private static final int S_IWOTH = 0000002; /* W for other */
-  private static final int S_IXOTH = 0000001; /* X for other */
+  /**
+   * The budget for data blocks in flight in bytes, which includes the buffers they are decompressed
+   * into. It gets what is left of the memory budget.
+   */
+  private long dataBudget() {
+    return memory > 0
+        ? memory * MEGABYTE - metadataBudget() - fragmentBudget() - fileBudget()
+        : dataQueue * MEGABYTE;
+  }
 
-  private static final int S_ISUID = 0004000; /* set user id on execution */
-  private static final int S_ISGID = 0002000; /* set group id on execution */
-  private static final int S_ISVTX = 0001000; /* save swapped text even after use */
+  /**
+   * Returns the number of processors to use. With a memory budget, every processor needs room for
+   * its blocks in flight, so fewer processors are used if the budget is small.
+   *
+   * @param blocks the number of blocks in flight, that fit into the budget for data blocks
+   */
+  private int processors(long blocks) {
+    return memory > 0 ? (int) Math.max(1, Math.min(processors, blocks)) : processors;
+  }
 
-  public String getPermissionString(Squashfs.InodeHeader inodeHeader) {
-    StringBuilder p = new StringBuilder();
-    int perms = inodeHeader.permissions();
-    if (inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
-        || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
-      p.append("d");
-    } else {
-      p.append("-");
-    }
-    if ((perms & S_IRUSR) > 0) {
-      p.append("r");
-    } else {
-      p.append("-");
-    }
-    if ((perms & S_IWUSR) > 0) {
-      p.append("w");
-    } else {
-      p.append("-");
-    }
-    if ((perms & S_IXUSR) > 0 && (perms & S_ISUID) > 0) {
-      p.append("s");
-    } else if ((perms & S_ISUID) > 0) {
-      p.append("S");
-    } else if ((perms & S_IXUSR) > 0) {
-      p.append("x");
-    } else {
-      p.append("-");
+  /**
+   * Writes the files to stdout. Each file is looked up through the directory indexes, so only the
+   * directories on its path are read.
+   */
+  private void cat() throws IOException {
+    try (SquashfsImage image = SquashfsImage.open(Paths.get(filesystem))) {
+      WritableByteChannel out = Channels.newChannel(System.out);
+      ByteBuffer buffer = ByteBuffer.allocate((int) image.squashfs().superblock().blockSize());
+      for (String file : files == null ? new String[0] : files) {
+        try (SeekableByteChannel in = image.newByteChannel(file)) {
+          while (in.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+              out.write(buffer);
+            }
+            buffer.clear();
+          }
+        }
+      }
+      System.out.flush();
     }
+  }
 
-    if ((perms & S_IRGRP) > 0) {
-      p.append("r");
-    } else {
-      p.append("-");
-    }
-    if ((perms & S_IWGRP) > 0) {
-      p.append("w");
-    } else {
-      p.append("-");
+  /**
+   * Decompresses the metadata tables in parallel, before the directory tree is walked. Without a
+   * memory budget, the metablock cache is enlarged to hold the tables, up to {@link
+   * #MAX_PRELOADED_METABLOCKS}.
+   */
+  private void preloadMetadata(Squashfs squashfs) {
+    MetablockCache metablocks = MetablockCache.of(squashfs);
+    if (memory <= 0) {
+      metablocks.setCapacity(
+          Math.max(
+              metablocks.capacity(),
+              Math.min(Metadata.metablocks(squashfs).length, MAX_PRELOADED_METABLOCKS)));
     }
-    if ((perms & S_IXGRP) > 0 && (perms & S_ISGID) > 0) {
-      p.append("s");
-    } else if ((perms & S_ISGID) > 0) {
-      p.append("S");
-    } else if ((perms & S_IXGRP) > 0) {
-      p.append("x");
-    } else {
-      p.append("-");
+    ForkJoinPool pool = new ForkJoinPool(processors);
+    try {
+      Metadata.preload(squashfs, pool);
+    } finally {
+      pool.shutdown();
     }
+  }
 
-    if ((perms & S_IROTH) > 0) {
-      p.append("r");
-    } else {
-      p.append("-");
-    }
-    if ((perms & S_IWOTH) > 0) {
-      p.append("w");
-    } else {
-      p.append("-");
+  private static void printStatistics(
+      Squashfs squashfs,
+      ParallelExtractor extractor,
+      Map<String, DecompressStatistics.Codec> before,
+      long nanos) {
+    double seconds = nanos / 1e9;
+    long read = 0;
+    long decompressed = 0;
+    StringBuilder codecs = new StringBuilder();
+    for (Map.Entry<String, DecompressStatistics.Codec> entry :
+        DecompressStatistics.snapshot().entrySet()) {
+      DecompressStatistics.Codec codec = entry.getValue().since(before.get(entry.getKey()));
+      if (codec.blocks() == 0) {
+        continue;
+      }
+      read += codec.compressedBytes();
+      decompressed += codec.bytes();
+      double codecSeconds = codec.nanos() / 1e9;
+      codecs.append(
+          String.format(
+              "%-20s %d blocks, %.1f MB to %.1f MB in %.2f s (%.1f MB/s)%n",
+              entry.getKey().toLowerCase(Locale.ROOT),
+              codec.blocks(),
+              megabytes(codec.compressedBytes()),
+              megabytes(codec.bytes()),
+              codecSeconds,
+              megabytes(codec.bytes()) / Math.max(codecSeconds, 1e-9)));
     }
-    if ((perms & S_IXOTH) > 0 && (perms & S_ISVTX) > 0) {
-      p.append("t");
-    } else if ((perms & S_ISVTX) > 0) {
-      p.append("T");
-    } else if ((perms & S_IXOTH) > 0) {
-      p.append("x");
-    } else {
-      p.append("-");
+    MetablockCache metablocks = MetablockCache.of(squashfs);
+    FragmentCache fragments = extractor.fragmentCache();
+    System.out.printf("%-20s %.2f s%n", "time", seconds);
+    System.out.printf(
+        "%-20s %.1f MB (%.1f MB/s)%n", "read", megabytes(read), megabytes(read) / seconds);
+    System.out.printf(
+        "%-20s %.1f MB (%.1f MB/s)%n",
+        "decompressed", megabytes(decompressed), megabytes(decompressed) / seconds);
+    System.out.printf(
+        "%-20s %d files, %.1f MB (%.1f MB/s)%n",
+        "written",
+        extractor.files(),
+        megabytes(extractor.bytesWritten()),
+        megabytes(extractor.bytesWritten()) / seconds);
+    if (extractor.unchangedFiles() > 0) {
+      System.out.printf("%-20s %d files%n", "unchanged", extractor.unchangedFiles());
     }
-    return p.toString();
+    System.out.printf(
+        "%-20s %d at most, of %d%n",
+        "open files", extractor.peakOpenFiles(), extractor.maxOpenFiles());
+    System.out.print(codecs);
+    System.out.printf(
+        "%-20s %d hits, %d misses%n", "metablock cache", metablocks.hits(), metablocks.misses());
+    System.out.printf(
+        "%-20s %d hits, %d misses%n", "fragment cache", fragments.hits(), fragments.misses());
+  }
+
+  private static double megabytes(long bytes) {
+    return bytes / (1024.0 * 1024.0);
   }
 
-  private boolean isFileOrEmpty(Squashfs.InodeHeader inodeHeader) {
-    if (inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY) {
-      Squashfs.InodeHeaderBasicDirectory directory =
-          (Squashfs.InodeHeaderBasicDirectory) inodeHeader.header();
-      return directory.dir().directoryHeader().isEmpty();
-    } else if (inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
-      Squashfs.InodeHeaderExtendedDirectory directory =
-          (Squashfs.InodeHeaderExtendedDirectory) inodeHeader.header();
-      return directory.dir().directoryHeader().isEmpty();
+  private Listing.Mode listingMode() {
+    if (list || info) {
+      return Listing.Mode.PATHS;
+    } else if (listConcise) {
+      return Listing.Mode.CONCISE;
+    } else if (listDetail || infoDetail || listNumeric) {
+      return Listing.Mode.DETAIL;
+    } else if (listConciseDetail) {
+      return Listing.Mode.CONCISE_DETAIL;
     } else {
-      return true;
+      return null;
     }
   }
 
-  private void recurse(
-      Map<Long, Squashfs.InodeHeader> inodes, Squashfs.InodeHeader inodeHeader, File dest)
+  public String getPermissionString(Squashfs.InodeHeader inodeHeader) {
+    StringBuilder p = new StringBuilder();
+    Listing.appendPermissions(p, inodeHeader);
+    return p.toString();
+  }
+
+  private void recurse(Squashfs.InodeHeader inodeHeader, File dest, PathFilter filter)
       throws IOException {
-    printFileName(inodeHeader, dest);
-    if (inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY) {
-      if (!dest.isDirectory() && !dest.mkdir()) {
-        throw new IOException("Could not create directory " + dest);
+    boolean directory =
+        inodeHeader.type() == Squashfs.InodeType.BASIC_DIRECTORY
+            || inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY;
+    if (!directory && !filter.selects()) {
+      return;
+    }
+    if (listing != null) {
+      listing.print(inodeHeader, dest.getPath());
+    }
+    if (directory) {
+      if (update && !Files.isDirectory(dest.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+        // an entry, that has been replaced by a directory
+        delete(dest.toPath());
       }
-      Squashfs.InodeHeaderBasicDirectory directory =
-          (Squashfs.InodeHeaderBasicDirectory) inodeHeader.header();
-      directory.dir().directoryHeader().stream()
-          .map(Squashfs.DirectoryHeader::directoryEntry)
-          .filter(Objects::nonNull)
-          .flatMap(List::stream)
-          .forEach(
-              aConsumerThatUnsafelyThrowsUnchecked(
-                  directoryEntry -> {
-                    File dir = new File(dest, directoryEntry.name());
-                    recurse(
-                        inodes,
-                        inodes.get(
-                            (long) directoryEntry._parent().inodeNumber()
-                                + directoryEntry.inodeOffset()),
-                        dir);
-                  }));
-      clearMemory(directory, "dir", "_raw_dir", "directoryTable", "_raw_directoryTable");
-    } else if (inodeHeader.type() == Squashfs.InodeType.EXTENDED_DIRECTORY) {
       if (!dest.isDirectory() && !dest.mkdir()) {
         throw new IOException("Could not create directory " + dest);
       }
-      Squashfs.InodeHeaderExtendedDirectory directory =
-          (Squashfs.InodeHeaderExtendedDirectory) inodeHeader.header();
-      directory.dir().directoryHeader().stream()
-          .map(Squashfs.DirectoryHeader::directoryEntry)
-          .filter(Objects::nonNull)
-          .flatMap(List::stream)
-          .forEach(
-              aConsumerThatUnsafelyThrowsUnchecked(
-                  directoryEntry -> {
-                    File dir = new File(dest, directoryEntry.name());
-                    recurse(
-                        inodes,
-                        inodes.get(
-                            (long) directoryEntry._parent().inodeNumber()
-                                + directoryEntry.inodeOffset()),
-                        dir);
-                  }));
-      clearMemory(directory, "dir", "_raw_dir", "directoryTable", "_raw_directoryTable");
-    } else if (inodeHeader.type() == Squashfs.InodeType.BASIC_FILE) {
-      Squashfs.InodeHeaderBasicFile file = (Squashfs.InodeHeaderBasicFile) inodeHeader.header();
-      byte[] data = new byte[(int) file.fileSize()];
-      int offset = 0;
-      for (Squashfs.DataBlock block : file.blocks()) {
-        // last block might be not fully used, we may need to cap the length
-        final int length = Math.min(block.data().data().length, (int) file.fileSize() - offset);
-        System.arraycopy(block.data().data(), 0, data, offset, length);
-        offset += length;
-      }
-      if (file.fragIndex() != 0xFFFFFFFFL) {
-        System.arraycopy(
-            file.fragment().block().data().data(),
-            (int) file.blockOffset(),
-            data,
-            offset,
-            data.length - offset);
-      }
-      Files.write(dest.toPath(), data);
-      clearMemory(file, "blocks", "_raw_blocks", "fragment");
-    } else if (inodeHeader.type() == Squashfs.InodeType.EXTENDED_FILE) {
-      Squashfs.InodeHeaderExtendedFile file =
-          (Squashfs.InodeHeaderExtendedFile) inodeHeader.header();
-      byte[] data = new byte[(int) file.fileSize()];
-      int offset = 0;
-      for (Squashfs.DataBlock block : file.blocks()) {
-        // last block might be not fully used, we may need to cap the length
-        final int length = Math.min(block.data().data().length, (int) file.fileSize() - offset);
-        System.arraycopy(block.data().data(), 0, data, offset, length);
-        offset += length;
+      List<Squashfs.DirectoryEntry> entries =
+          Metadata.directory(inodeHeader).directoryHeader().stream()
+              .map(Squashfs.DirectoryHeader::directoryEntry)
+              .filter(Objects::nonNull)
+              .flatMap(List::stream)
+              .collect(Collectors.toList());
+      entries.forEach(
+          aConsumerThatUnsafelyThrowsUnchecked(
+              directoryEntry -> {
+                // entries that are not selected are skipped before their inode is read
+                PathFilter child = filter.child(directoryEntry.name());
+                if (child == null) {
+                  return;
+                }
+                File dir = new File(dest, directoryEntry.name());
+                recurse(
+                    Metadata.inode(
+                        inodeHeader._root(),
+                        directoryEntry._parent().start(),
+                        directoryEntry.offset()),
+                    dir,
+                    child);
+              }));
+      if (update && updateDelete) {
+        Set<String> names =
+            entries.stream().map(Squashfs.DirectoryEntry::name).collect(Collectors.toSet());
+        for (String name : Objects.requireNonNull(dest.list())) {
+          if (!names.contains(name)) {
+            delete(new File(dest, name).toPath());
+          }
+        }
       }
-      if (file.fragIndex() != 0xFFFFFFFFL) {
-        System.arraycopy(
-            file.fragment().block().data().data(),
-            (int) file.blockOffset(),
-            data,
-            offset,
-            data.length - offset);
+    } else if (FileInode.isFile(inodeHeader)) {
+      FileInode file = FileInode.of(inodeHeader, blockSizes);
+      if (update
+          && (isUnchanged(dest.toPath(), file)
+              || updateVerify && hasSameContents(dest.toPath(), inodeHeader, file))) {
+        plan.add(dest, file, true);
+      } else {
+        if (update && Files.isDirectory(dest.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+          // a directory, that has been replaced by a file
+          delete(dest.toPath());
+        }
+        plan.add(dest, file, false);
       }
-      Files.write(dest.toPath(), data);
-      clearMemory(file, "blocks", "_raw_blocks", "fragment");
     } else {
       throw new IOException("Unsupported inode type " + inodeHeader.type());
     }
   }
 
-  private void clearMemory(Object directory, String... fieldNames) {
-    // claim back memory, currently only working with reflection
-    for (String fieldName : fieldNames) {
-      try {
-        Field f = directory.getClass().getDeclaredField(fieldName);
-        f.setAccessible(true);
-        f.set(directory, null);
-      } catch (NoSuchFieldException | IllegalAccessException e) {
-        throw new RuntimeException(e);
+  /**
+   * Returns whether an existing file has the size and the modification time of a file in the image.
+   * Extraction sets the modification time once a file has been written completely, so files that
+   * match are skipped without decompressing them.
+   */
+  private static boolean isUnchanged(Path path, FileInode file) throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    return attributes.isRegularFile()
+        && attributes.size() == file.fileSize
+        && attributes.lastModifiedTime().to(TimeUnit.SECONDS) == file.mtime;
+  }
+
+  /**
+   * Returns whether an existing file has the contents of a file in the image. Squashfs stores no
+   * checksums of the data, so the file is decompressed and compared block by block, which saves
+   * writing it. A matching file gets the modification time of the image, so it is taken as
+   * unchanged by {@link #isUnchanged(Path, FileInode)} the next time.
+   */
+  private boolean hasSameContents(Path path, Squashfs.InodeHeader inodeHeader, FileInode file)
+      throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    if (!attributes.isRegularFile() || attributes.size() != file.fileSize) {
+      return false;
+    }
+    try (SeekableByteChannel in = image.newByteChannel(inodeHeader);
+        FileChannel existing = FileChannel.open(path)) {
+      for (long position = 0; position < file.fileSize; ) {
+        int length = (int) Math.min(expected.capacity(), file.fileSize - position);
+        expected.clear().limit(length);
+        actual.clear().limit(length);
+        readFully(in, expected);
+        readFully(existing, actual);
+        if (!expected.flip().equals(actual.flip())) {
+          return false;
+        }
+        position += length;
       }
     }
+    Files.setLastModifiedTime(path, FileTime.from(file.mtime, TimeUnit.SECONDS));
+    return true;
+  }
+
+  private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Unexpected end of " + channel);
+      }
+    }
+  }
+
+  /** Deletes a file or a directory with everything below it. Symbolic links are not followed. */
+  private static void delete(Path path) throws IOException {
+    if (Files.notExists(path, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+    Files.walkFileTree(
+        path,
+        new SimpleFileVisitor<>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Files.delete(file);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            if (exc != null) {
+              throw exc;
+            }
+            Files.delete(dir);
+            return FileVisitResult.CONTINUE;
+          }
+        });
   }
 }
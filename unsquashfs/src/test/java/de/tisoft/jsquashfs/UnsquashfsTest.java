@@ -1,20 +1,38 @@
 package de.tisoft.jsquashfs;
 
 import static com.github.stefanbirkner.systemlambda.SystemLambda.catchSystemExit;
+import static com.github.stefanbirkner.systemlambda.SystemLambda.tapSystemErr;
+import static com.github.stefanbirkner.systemlambda.SystemLambda.tapSystemOut;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 
+import de.tisoft.jsquashfs.parser.DecompressStatistics;
+import de.tisoft.jsquashfs.parser.Metadata;
+import de.tisoft.jsquashfs.parser.Squashfs;
+import io.kaitai.struct.ByteBufferKaitaiStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
+import picocli.CommandLine;
 
 class UnsquashfsTest {
   @TempDir private Path directory;
@@ -40,6 +58,501 @@ class UnsquashfsTest {
     assertDirectory(new File(targetDir(), "data").toPath(), directory);
   }
 
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testSingleProcessor(File file) throws Exception {
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(
+                    new String[] {
+                      file.getAbsolutePath(), "-d", directory.toString(), "-processors", "1"
+                    }));
+    assertThat(statusCode).isZero();
+    assertDirectory(new File(targetDir(), "data").toPath(), directory);
+  }
+
+  @Test
+  void testInvalidProcessors() throws Exception {
+    File file = new File(targetDir(), "sq.img.gzip");
+    String output =
+        tapSystemErr(
+            () -> {
+              int statusCode =
+                  catchSystemExit(
+                      () ->
+                          Unsquashfs.main(
+                              new String[] {
+                                file.getAbsolutePath(), "-d", directory.toString(), "-p", "0"
+                              }));
+              assertThat(statusCode).isEqualTo(CommandLine.ExitCode.USAGE);
+            });
+    assertThat(output).contains("Invalid number of processors: 0");
+    assertThat(directory).isEmptyDirectory();
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testNoFragmentCache(File file) throws Exception {
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(
+                    new String[] {
+                      file.getAbsolutePath(), "-d", directory.toString(), "-fragment-queue", "0"
+                    }));
+    assertThat(statusCode).isZero();
+    assertDirectory(new File(targetDir(), "data").toPath(), directory);
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testMemoryBudget(File file) throws Exception {
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(
+                    new String[] {
+                      file.getAbsolutePath(), "-d", directory.toString(), "-mem", "1"
+                    }));
+    assertThat(statusCode).isZero();
+    assertDirectory(new File(targetDir(), "data").toPath(), directory);
+  }
+
+  @Test
+  void testMemoryBudgetWithSmallFiles() throws Exception {
+    // files with only a fragment take no data block, the budget has to limit them as well
+    File file = new File(targetDir(), "small-files.img");
+    String output =
+        tapSystemOut(
+            () ->
+                assertThat(
+                        catchSystemExit(
+                            () ->
+                                Unsquashfs.main(
+                                    new String[] {
+                                      file.getAbsolutePath(),
+                                      "-d",
+                                      directory.toString(),
+                                      "-mem",
+                                      "1",
+                                      "-stats"
+                                    })))
+                    .isZero());
+    assertThat(output)
+        .containsPattern("written +2002 files")
+        .containsPattern("open files +([1-9]|1[0-6]) at most, of 16");
+    assertDirectory(new File(targetDir(), "small-files").toPath(), directory);
+  }
+
+  @Test
+  void testHardLinksAndDuplicates() throws Exception {
+    File file = new File(targetDir(), "small-files.img");
+    Path data = new File(targetDir(), "small-files").toPath();
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(new String[] {file.getAbsolutePath(), "-d", directory.toString()}));
+    assertThat(statusCode).isZero();
+    // links to the same inode become hard links
+    assertThat(Files.isSameFile(directory.resolve("link-1000"), directory.resolve("file-1000")))
+        .isTrue();
+    assertThat(directory.resolve("link-1000")).hasSameBinaryContentAs(data.resolve("file-1000"));
+    // files with the same data are copied, they stay separate files
+    for (String name : new String[] {"1999", "2000"}) {
+      Path copy = directory.resolve("copy-" + name);
+      assertThat(Files.isSameFile(copy, directory.resolve("file-" + name))).isFalse();
+      assertThat(copy).hasSameBinaryContentAs(data.resolve("file-" + name));
+    }
+    assertDirectory(data, directory);
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testNoDataQueue(File file) throws Exception {
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(
+                    new String[] {
+                      file.getAbsolutePath(), "-d", directory.toString(), "-data-queue", "0"
+                    }));
+    assertThat(statusCode).isZero();
+    assertDirectory(new File(targetDir(), "data").toPath(), directory);
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testSparseFileBeforeFileWithSameStart(File file) throws Exception {
+    // the sparse file stores no data, its blocks start where the data of the next file starts
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(
+                    new String[] {
+                      file.getAbsolutePath(),
+                      "-d",
+                      directory.toString(),
+                      "same-start-1-zero",
+                      "same-start-2-urandom"
+                    }));
+    assertThat(statusCode).isZero();
+    Path data = new File(targetDir(), "data").toPath();
+    for (String name : new String[] {"same-start-1-zero", "same-start-2-urandom"}) {
+      assertThat(directory.resolve(name)).hasSameBinaryContentAs(data.resolve(name));
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testList(File file) throws Exception {
+    String[] names = new File(targetDir(), "data").list();
+    Set<String> expected = new HashSet<>();
+    for (String name : names) {
+      expected.add(directory + "/" + name);
+    }
+    // all entries, and the files and empty directories in concise mode
+    assertThat(list(file, "-ls"))
+        .hasSize(names.length + 1)
+        .contains(directory.toString())
+        .containsAll(expected);
+    assertThat(list(file, "-lc")).containsExactlyInAnyOrderElementsOf(expected);
+    // listing must not extract anything
+    assertThat(directory).isEmptyDirectory();
+  }
+
+  private List<String> list(File file, String option) throws Exception {
+    String output =
+        tapSystemOut(
+            () ->
+                assertThat(
+                        catchSystemExit(
+                            () ->
+                                Unsquashfs.main(
+                                    new String[] {
+                                      file.getAbsolutePath(), "-d", directory.toString(), option
+                                    })))
+                    .isZero());
+    return output.lines().collect(Collectors.toList());
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testListSparse(File file) throws Exception {
+    String output =
+        tapSystemOut(
+            () -> {
+              int statusCode =
+                  catchSystemExit(
+                      () ->
+                          Unsquashfs.main(
+                              new String[] {
+                                file.getAbsolutePath(), "-d", directory.toString(), "-lln"
+                              }));
+              assertThat(statusCode).isZero();
+            });
+    assertThat(output)
+        .containsPattern(" 1048576 \\(0 allocated\\) .*/file-zero-1M-1\\R")
+        .containsPattern(" 1048576 .*/file-urandom-1M-1\\R")
+        .doesNotContainPattern("allocated\\) .*/file-urandom-1M-1\\R");
+    // listing must not extract anything
+    assertThat(directory).isEmptyDirectory();
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testExtractSelected(File file) throws Exception {
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(
+                    new String[] {
+                      file.getAbsolutePath(),
+                      "-d",
+                      directory.toString(),
+                      "file-urandom-4K-*",
+                      "/dir-xattr"
+                    }));
+    assertThat(statusCode).isZero();
+    assertThat(directory.toFile().list())
+        .containsExactlyInAnyOrder(
+            "file-urandom-4K-1",
+            "file-urandom-4K-2",
+            "file-urandom-4K-3",
+            "file-urandom-4K-4",
+            "file-urandom-4K-5",
+            "dir-xattr");
+    assertDirectory(
+        new File(targetDir(), "data/file-urandom-4K-3").toPath(),
+        directory.resolve("file-urandom-4K-3"));
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testExtractExcludes(File file) throws Exception {
+    int statusCode =
+        catchSystemExit(
+            () ->
+                Unsquashfs.main(
+                    new String[] {
+                      file.getAbsolutePath(),
+                      "-d",
+                      directory.toString(),
+                      "-excludes",
+                      "combined-*",
+                      "file-*",
+                      "same-start-*"
+                    }));
+    assertThat(statusCode).isZero();
+    assertThat(directory.toFile().list())
+        .allMatch(name -> name.startsWith("frag-") || name.equals("dir-xattr"))
+        .contains("frag-urandom-4095", "dir-xattr");
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testCat(File file) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(out));
+    try {
+      int statusCode =
+          catchSystemExit(
+              () ->
+                  Unsquashfs.main(
+                      new String[] {
+                        file.getAbsolutePath(), "-cat", "file-urandom-1M-2", "/frag-urandom-2047"
+                      }));
+      assertThat(statusCode).isZero();
+    } finally {
+      System.setOut(stdout);
+    }
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(Files.readAllBytes(new File(targetDir(), "data/file-urandom-1M-2").toPath()));
+    expected.write(Files.readAllBytes(new File(targetDir(), "data/frag-urandom-2047").toPath()));
+    assertThat(out.toByteArray()).isEqualTo(expected.toByteArray());
+  }
+
+  @ParameterizedTest
+  @MethodSource("provideStringsForIsBlank")
+  void testCheck(File file) throws Exception {
+    String output =
+        tapSystemOut(
+            () -> {
+              int statusCode =
+                  catchSystemExit(
+                      () ->
+                          Unsquashfs.main(
+                              new String[] {
+                                file.getAbsolutePath(), "-d", directory.toString(), "-check"
+                              }));
+              assertThat(statusCode).isZero();
+            });
+    assertThat(output).contains("191 files, 2 directories").contains(", 0 errors");
+    // checking must not extract anything
+    assertThat(directory).isEmptyDirectory();
+  }
+
+  @Test
+  void testCheckSmallFiles() throws Exception {
+    // hard links and duplicates share their blocks and fragments
+    File file = new File(targetDir(), "small-files.img");
+    String output =
+        tapSystemOut(
+            () ->
+                assertThat(
+                        catchSystemExit(
+                            () -> Unsquashfs.main(new String[] {file.getAbsolutePath(), "-check"})))
+                    .isZero());
+    assertThat(output).contains("2003 files, 1 directories").contains(", 0 errors");
+  }
+
+  @Test
+  void testCheckCorrupt() throws Exception {
+    byte[] image = Files.readAllBytes(new File(targetDir(), "sq.img.gzip").toPath());
+    // overwrite the compressed data of the first metablock of the directory table
+    int directoryTableStart =
+        (int) ByteBuffer.wrap(image, 72, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    Arrays.fill(image, directoryTableStart + 4, directoryTableStart + 20, (byte) 0x55);
+    Path corrupt = Files.write(directory.resolve("corrupt.img"), image);
+    String output =
+        tapSystemOut(
+            () -> {
+              int statusCode =
+                  catchSystemExit(
+                      () -> Unsquashfs.main(new String[] {corrupt.toString(), "-check"}));
+              assertThat(statusCode).isNotZero();
+            });
+    assertThat(output)
+        .contains("directory table: metablock at " + directoryTableStart + " is corrupt")
+        .doesNotContain(", 0 errors");
+  }
+
+  @Test
+  void testCheckLoop() throws Exception {
+    // the inode table of this image is not compressed, so its inodes can be patched in place
+    File file = new File(targetDir(), "sq.img.-noI_-noD_-noF_-noX");
+    byte[] image = Files.readAllBytes(file.toPath());
+    Squashfs squashfs = new Squashfs(new ByteBufferKaitaiStream(image));
+    long inodeTableStart = squashfs.superblock().inodeTableStart();
+    long rootReference = squashfs.superblock().rootInodeRef().raw();
+    Squashfs.InodeHeader rootInode = Metadata.inode(squashfs, rootReference);
+    Squashfs.DirectoryEntry entry = Metadata.lookup(rootInode, "dir-xattr");
+    long reference = (entry._parent().start() << 16) | entry.offset();
+    Squashfs.InodeHeader directoryInode = Metadata.inode(squashfs, reference);
+    assertThat(rootInode.type()).isEqualTo(Squashfs.InodeType.BASIC_DIRECTORY);
+    assertThat(directoryInode.type()).isEqualTo(Squashfs.InodeType.BASIC_DIRECTORY);
+
+    // the listing of the subdirectory becomes the listing of the root, which contains it again
+    ByteBuffer buffer = ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN);
+    int rootPosition = inodePosition(inodeTableStart, rootReference);
+    int directoryPosition = inodePosition(inodeTableStart, reference);
+    // dir_block_start, file_size and block_offset of a basic directory inode
+    buffer.putInt(directoryPosition + 16, buffer.getInt(rootPosition + 16));
+    buffer.putInt(directoryPosition + 24, buffer.getInt(rootPosition + 24));
+    Path corrupt = Files.write(directory.resolve("loop.img"), image);
+
+    String output =
+        tapSystemOut(
+            () -> {
+              int statusCode =
+                  catchSystemExit(
+                      () -> Unsquashfs.main(new String[] {corrupt.toString(), "-check"}));
+              assertThat(statusCode).isNotZero();
+            });
+    assertThat(output).contains("/dir-xattr/dir-xattr/: directory inode at", "has a loop");
+  }
+
+  /** Returns the position of an inode in an image with an uncompressed inode table. */
+  private static int inodePosition(long inodeTableStart, long reference) {
+    // every metablock has a two byte header
+    return (int) (inodeTableStart + (reference >>> 16) + 2 + (reference & 0xFFFF));
+  }
+
+  @Test
+  void testStats() throws Exception {
+    File file = new File(targetDir(), "sq.img.gzip");
+    String output =
+        tapSystemOut(
+            () -> {
+              int statusCode =
+                  catchSystemExit(
+                      () ->
+                          Unsquashfs.main(
+                              new String[] {
+                                file.getAbsolutePath(), "-d", directory.toString(), "-stats"
+                              }));
+              assertThat(statusCode).isZero();
+            });
+    assertThat(output)
+        .containsPattern("written +191 files")
+        .containsPattern("zlib +\\d+ blocks")
+        .containsPattern("uncompressed +\\d+ blocks")
+        .contains("metablock cache", "fragment cache");
+    // the statistics are only collected during the run
+    assertThat(DecompressStatistics.isEnabled()).isFalse();
+    assertDirectory(new File(targetDir(), "data").toPath(), directory);
+  }
+
+  @Test
+  void testUpdate() throws Exception {
+    File file = new File(targetDir(), "sq.img.gzip");
+    Path data = new File(targetDir(), "data").toPath();
+    String[] args = {file.getAbsolutePath(), "-d", directory.toString(), "-update", "-stats"};
+    assertThat(catchSystemExit(() -> Unsquashfs.main(args))).isZero();
+    assertDirectory(data, directory);
+
+    // same size and modification time, so the file is taken as unchanged
+    Path unchanged = directory.resolve("file-zero-4K-2");
+    FileTime mtime = Files.getLastModifiedTime(unchanged);
+    byte[] marker = new byte[(int) Files.size(unchanged)];
+    Arrays.fill(marker, (byte) 'x');
+    Files.write(unchanged, marker);
+    Files.setLastModifiedTime(unchanged, mtime);
+    Files.write(directory.resolve("file-urandom-1M-2"), new byte[10]);
+    Files.delete(directory.resolve("frag-zero-1"));
+    Files.createDirectories(directory.resolve("extra"));
+    Files.write(directory.resolve("extra/file"), new byte[10]);
+
+    String output =
+        tapSystemOut(
+            () ->
+                assertThat(
+                        catchSystemExit(
+                            () ->
+                                Unsquashfs.main(
+                                    new String[] {
+                                      file.getAbsolutePath(),
+                                      "-d",
+                                      directory.toString(),
+                                      "-update",
+                                      "-update-delete",
+                                      "-stats"
+                                    })))
+                    .isZero());
+    assertThat(output).containsPattern("written +2 files").containsPattern("unchanged +189 files");
+    assertThat(unchanged).hasBinaryContent(marker);
+    assertThat(directory.resolve("extra")).doesNotExist();
+    Files.copy(data.resolve("file-zero-4K-2"), unchanged, StandardCopyOption.REPLACE_EXISTING);
+    assertDirectory(data, directory);
+  }
+
+  @Test
+  void testUpdateVerify() throws Exception {
+    File file = new File(targetDir(), "sq.img.gzip");
+    Path data = new File(targetDir(), "data").toPath();
+    String[] args = {file.getAbsolutePath(), "-d", directory.toString(), "-update"};
+    assertThat(catchSystemExit(() -> Unsquashfs.main(args))).isZero();
+
+    // touched, but with the same contents
+    Path touched = directory.resolve("file-urandom-1M-3");
+    FileTime mtime = Files.getLastModifiedTime(touched);
+    Files.setLastModifiedTime(touched, FileTime.fromMillis(0));
+    // changed, with the same size
+    Path changed = directory.resolve("file-urandom-4K-3");
+    Files.write(changed, new byte[(int) Files.size(changed)]);
+
+    String output =
+        tapSystemOut(
+            () ->
+                assertThat(
+                        catchSystemExit(
+                            () ->
+                                Unsquashfs.main(
+                                    new String[] {
+                                      file.getAbsolutePath(),
+                                      "-d",
+                                      directory.toString(),
+                                      "-update",
+                                      "-update-verify",
+                                      "-stats"
+                                    })))
+                    .isZero());
+    assertThat(output).containsPattern("written +1 files").containsPattern("unchanged +190 files");
+    assertThat(Files.getLastModifiedTime(touched)).isEqualTo(mtime);
+    assertDirectory(data, directory);
+  }
+
+  @Test
+  void testUpdateKeepsOtherLinks() throws Exception {
+    File file = new File(targetDir(), "sq.img.gzip");
+    Path data = new File(targetDir(), "data").toPath();
+    String[] args = {file.getAbsolutePath(), "-d", directory.toString(), "-update"};
+    assertThat(catchSystemExit(() -> Unsquashfs.main(args))).isZero();
+
+    // a changed file, that shares its inode with an unchanged one
+    Path changed = directory.resolve("file-urandom-1M-2");
+    Path unchanged = directory.resolve("file-zero-4K-2");
+    Files.delete(changed);
+    Files.createLink(changed, unchanged);
+
+    assertThat(catchSystemExit(() -> Unsquashfs.main(args))).isZero();
+    assertThat(unchanged).hasSameBinaryContentAs(data.resolve("file-zero-4K-2"));
+    assertThat(Files.isSameFile(changed, unchanged)).isFalse();
+    assertThat(directory.toFile().list()).noneMatch(name -> name.startsWith(".jsquashfs-"));
+    assertDirectory(data, directory);
+  }
+
   private void assertDirectory(Path source, Path dest) throws IOException {
     System.out.println("Checking " + dest);
     File sourceFile = source.toFile();